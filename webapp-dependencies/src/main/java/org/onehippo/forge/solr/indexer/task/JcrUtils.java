@@ -18,12 +18,17 @@ package org.onehippo.forge.solr.indexer.task;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.Item;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.Property;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -45,15 +50,33 @@ public final class JcrUtils {
     /** Logger */
     private static final Logger log = LoggerFactory.getLogger(JcrUtils.class);
 
-    /** Node types cache (including super types) */
-    private static final Map<NodeType, Collection<String>> NODE_TYPES = new HashMap<NodeType, Collection<String>>();
+    /**
+     * Node types cache (including super types), by primary type name (shared by all sessions and reader threads)
+     */
+    private static final ConcurrentMap<String, Collection<String>> NODE_TYPES =
+            new ConcurrentHashMap<String, Collection<String>>();
+
+    /** Link separator in property paths: the property after it is read on the linked document */
+    private static final String LINK_SEPARATOR = "->";
+
+    /** Docbase of empty links (Hippo root node) */
+    private static final String NO_LINK = "cafebabe-cafe-babe-cafe-babecafebabe";
+
+    /** Cached value for links without value */
+    private static final Object NO_VALUE = new Object();
 
     /** Path to availability */
     private static final String PATH_AVAILABILITY = "hippo:availability";
 
+    /** Path to link docbase */
+    private static final String PATH_DOCBASE = "hippo:docbase";
+
     /** Path separator */
     private static final String PATH_SEPARATOR = "/";
 
+    /** Path to workflow state */
+    private static final String PATH_STATE = "hippostd:state";
+
     /** Path to UUID */
     private static final String PATH_UUID = "jcr:uuid";
 
@@ -71,6 +94,84 @@ public final class JcrUtils {
         }
     }
 
+    /**
+     * Cache of linked documents values (key = linked UUID and property path), for sharing the links resolution between
+     * documents and reader threads during a run. The cache is split in segments, each with its own lock and evicting its
+     * least recently used values, so that concurrent readers rarely wait for each other.
+     */
+    public static final class LinkCache {
+
+        /** Number of segments */
+        private static final int SEGMENTS = 16;
+
+        /** Segments (access-ordered maps) */
+        private final Map<String, Object>[] segments;
+
+        /**
+         * Constructor
+         * @param capacity Maximum number of cached values
+         */
+        @SuppressWarnings("unchecked")
+        private LinkCache(int capacity) {
+            final int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+            segments = new Map[SEGMENTS];
+            for (int i = 0; i < SEGMENTS; ++i) {
+                segments[i] = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+                    /** {@inheritDoc} */
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                        return size() > segmentCapacity;
+                    }
+                };
+            }
+        }
+
+        /**
+         * Get the segment of a key
+         * @param key Key
+         * @return Segment
+         */
+        private Map<String, Object> getSegment(String key) {
+            int h = key.hashCode();
+            h ^= (h >>> 20) ^ (h >>> 12);
+            h ^= (h >>> 7) ^ (h >>> 4);
+            return segments[h & (SEGMENTS - 1)];
+        }
+
+        /**
+         * Get a cached value
+         * @param key Key
+         * @return Value (null if not cached)
+         */
+        public Object get(String key) {
+            Map<String, Object> segment = getSegment(key);
+            synchronized (segment) {
+                return segment.get(key);
+            }
+        }
+
+        /**
+         * Cache a value
+         * @param key Key
+         * @param value Value
+         */
+        public void put(String key, Object value) {
+            Map<String, Object> segment = getSegment(key);
+            synchronized (segment) {
+                segment.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Create a cache of linked documents values (least recently used values are evicted)
+     * @param capacity Maximum number of cached values
+     * @return Linked documents values cache
+     */
+    public static LinkCache createLinkCache(int capacity) {
+        return new LinkCache(capacity);
+    }
+
     /**
      * Get node types (including super types)
      * @param node Node
@@ -78,14 +179,16 @@ public final class JcrUtils {
      */
     private static Collection<String> getNodeTypes(Node node) {
         try {
-            Collection<String> nodeTypes = NODE_TYPES.get(node.getPrimaryNodeType());
+            NodeType primaryNodeType = node.getPrimaryNodeType();
+            Collection<String> nodeTypes = NODE_TYPES.get(primaryNodeType.getName());
             if (nodeTypes == null) {
                 nodeTypes = new HashSet<String>();
-                nodeTypes.add(node.getPrimaryNodeType().getName());
-                for (NodeType superType : node.getPrimaryNodeType().getSupertypes()) {
+                nodeTypes.add(primaryNodeType.getName());
+                for (NodeType superType : primaryNodeType.getSupertypes()) {
                     nodeTypes.add(superType.getName());
                 }
-                NODE_TYPES.put(node.getPrimaryNodeType(), Collections.unmodifiableCollection(nodeTypes));
+                nodeTypes = Collections.unmodifiableCollection(nodeTypes);
+                NODE_TYPES.putIfAbsent(primaryNodeType.getName(), nodeTypes);
             }
             return nodeTypes;
         } catch (RepositoryException e) {
@@ -130,6 +233,15 @@ public final class JcrUtils {
         return null;
     }
 
+    /**
+     * Check if a property path designates a property of the node itself (neither nested nor following links)
+     * @param propertyPath JCR property path
+     * @return TRUE if the property belongs to the node
+     */
+    public static boolean isOwnProperty(String propertyPath) {
+        return !propertyPath.contains(LINK_SEPARATOR) && !propertyPath.contains(PATH_SEPARATOR);
+    }
+
     /**
      * Get UUID for a node (handle UUID if the node is a document)
      * @param node Node
@@ -157,6 +269,138 @@ public final class JcrUtils {
         return uuid;
     }
 
+    /**
+     * Get the live variant of a linked document
+     * @param node Node containing the link
+     * @param uuid Linked UUID (handle or document)
+     * @return Linked document (null if not found or not live)
+     */
+    private static Node getLinkedDocument(Node node, String uuid) {
+        try {
+            Node linked = node.getSession().getNodeByIdentifier(uuid);
+            if (!isHandle(linked)) {
+                return linked;
+            }
+            List<Node> liveVariants = new ArrayList<Node>();
+            for (Node variant : getVariants(linked)) {
+                if (isLive(variant)) {
+                    liveVariants.add(variant);
+                }
+            }
+            return selectVariant(liveVariants);
+        } catch (ItemNotFoundException e) {
+            log.debug("Linked node {} not found from node at {}", uuid, getPath(node));
+        } catch (RepositoryException e) {
+            log.error("Failed to retrieve linked node " + uuid + " from node at " + getPath(node), e);
+        }
+        return null;
+    }
+
+    /**
+     * Get linked UUIDs
+     * @param node Node
+     * @param linkPath Path to link nodes (same name siblings with docbase) or to a property containing UUIDs
+     * @return Linked UUIDs
+     */
+    private static Collection<String> getLinkedUUIDs(Node node, String linkPath) {
+        Collection<String> uuids = new ArrayList<String>();
+        for (Node link : getNodes(node, linkPath)) {
+            addLinkedUUIDs(uuids, getProperty(link, PATH_DOCBASE));
+        }
+        if (uuids.isEmpty()) {
+            addLinkedUUIDs(uuids, getProperty(node, linkPath));
+        }
+        return uuids;
+    }
+
+    /**
+     * Add the UUIDs of a link property
+     * @param uuids Linked UUIDs (will be updated)
+     * @param property Property containing UUIDs (nullable)
+     */
+    private static void addLinkedUUIDs(Collection<String> uuids, Property property) {
+        if (property == null) {
+            return;
+        }
+        try {
+            Value[] values = property.isMultiple() ? property.getValues() : new Value[]{property.getValue()};
+            for (Value value : values) {
+                String uuid = StringUtils.trimToNull(value.getString());
+                if (uuid != null && !NO_LINK.equals(uuid)) {
+                    uuids.add(uuid);
+                }
+            }
+        } catch (RepositoryException e) {
+            log.error("Failed to retrieve link " + getPath(property), e);
+        }
+    }
+
+    /**
+     * Get the JCR nodes at a path, including their same name siblings (nested nodes if path contains '/')
+     * @param node JCR node
+     * @param nodePath JCR node path
+     * @return JCR nodes (empty if none)
+     */
+    private static List<Node> getNodes(Node node, String nodePath) {
+        List<Node> nodes = new ArrayList<Node>();
+        String nodePathStripped = StringUtils.strip(nodePath, PATH_SEPARATOR);
+        try {
+            Node parent = node;
+            if (StringUtils.contains(nodePathStripped, PATH_SEPARATOR)) {
+                String parentPath = StringUtils.substringBeforeLast(nodePathStripped, PATH_SEPARATOR);
+                if (!node.hasNode(parentPath)) {
+                    return nodes;
+                }
+                parent = node.getNode(parentPath);
+            }
+            NodeIterator i = parent.getNodes(StringUtils.substringAfterLast(PATH_SEPARATOR + nodePathStripped,
+                    PATH_SEPARATOR));
+            while (i.hasNext()) {
+                nodes.add(i.nextNode());
+            }
+        } catch (RepositoryException e) {
+            log.error("Failed to retrieve nodes " + nodePath + " for node at " + getPath(node), e);
+        }
+        return nodes;
+    }
+
+    /**
+     * Get the document variants of a handle
+     * @param handle Handle
+     * @return Variants (empty if they cannot be retrieved)
+     */
+    public static List<Node> getVariants(Node handle) {
+        List<Node> variants = new ArrayList<Node>();
+        try {
+            NodeIterator i = handle.getNodes(handle.getName());
+            while (i.hasNext()) {
+                variants.add(i.nextNode());
+            }
+        } catch (RepositoryException e) {
+            log.error("Failed to retrieve variants of handle at " + getPath(handle), e);
+        }
+        return variants;
+    }
+
+    /**
+     * Select the authoritative variant of a handle: the published one, or else the first one
+     * @param variants Candidate variants (e.g. live)
+     * @return Variant (null if no candidate)
+     */
+    public static Node selectVariant(List<Node> variants) {
+        for (Node variant : variants) {
+            try {
+                if (variant.hasProperty(PATH_STATE) &&
+                        "published".equals(variant.getProperty(PATH_STATE).getString())) {
+                    return variant;
+                }
+            } catch (RepositoryException e) {
+                log.error("Failed to retrieve property " + PATH_STATE + " for node at " + getPath(variant), e);
+            }
+        }
+        return variants.isEmpty() ? null : variants.get(0);
+    }
+
     /**
      * Check if a node is a folder
      * @param node Node
@@ -220,9 +464,23 @@ public final class JcrUtils {
      * @return Property value (array if multiple property)
      */
     public static Object readPropertyValue(Node node, String propertyPath) {
+        return readPropertyValue(node, propertyPath, null);
+    }
+
+    /**
+     * Read property value, following links (e.g. <i>ns:author-&gt;ns:name</i> reads the name of the linked author)
+     * @param node Node
+     * @param propertyPath Property path
+     * @param linkCache Linked documents values cache (nullable, see {@link #createLinkCache(int)})
+     * @return Property value (array if multiple property or multiple links)
+     */
+    public static Object readPropertyValue(Node node, String propertyPath, LinkCache linkCache) {
         if (node == null || StringUtils.isBlank(propertyPath)) {
             return null;
         }
+        if (propertyPath.contains(LINK_SEPARATOR)) {
+            return readLinkedPropertyValue(node, propertyPath, linkCache);
+        }
         Object value = null;
         if (PATH_UUID.equals(propertyPath)) {
             value = getUUID(node);
@@ -251,6 +509,38 @@ public final class JcrUtils {
         return value;
     }
 
+    /**
+     * Read property value of the linked documents
+     * @param node Node
+     * @param propertyPath Property path (containing a link separator)
+     * @param linkCache Linked documents values cache (nullable)
+     * @return Property value (array if multiple property or multiple links)
+     */
+    private static Object readLinkedPropertyValue(Node node, String propertyPath, LinkCache linkCache) {
+        String linkPath = StringUtils.substringBefore(propertyPath, LINK_SEPARATOR);
+        String linkedPropertyPath = StringUtils.substringAfter(propertyPath, LINK_SEPARATOR);
+        Collection<Object> values = new ArrayList<Object>();
+        for (String uuid : getLinkedUUIDs(node, linkPath)) {
+            String key = uuid + LINK_SEPARATOR + linkedPropertyPath;
+            Object value = linkCache == null ? null : linkCache.get(key);
+            if (value == null) {
+                value = readPropertyValue(getLinkedDocument(node, uuid), linkedPropertyPath, linkCache);
+                if (linkCache != null) {
+                    linkCache.put(key, value == null ? NO_VALUE : value);
+                }
+            }
+            if (value instanceof Collection) {
+                values.addAll((Collection<?>) value);
+            } else if (value != null && value != NO_VALUE) {
+                values.add(value);
+            }
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        return values.size() == 1 ? values.iterator().next() : values;
+    }
+
     /**
      * Convert a JCR value into a Java object
      * @param value JCR value
@@ -267,7 +557,7 @@ public final class JcrUtils {
                     object = value.getBoolean();
                     break;
                 case PropertyType.DATE:
-                    object = value.getDate();
+                    object = value.getDate().getTime();
                     break;
                 case PropertyType.DECIMAL:
                     object = value.getDecimal();
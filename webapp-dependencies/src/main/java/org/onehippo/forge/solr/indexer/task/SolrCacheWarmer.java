@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Solr cache warmer: after a commit, queries the new searcher with filters on the indexed primary types, and facets or
+ * sorts (single-valued fields only) on the typed dynamic fields, so that its caches are warm before the site queries it
+ * (bounded concurrency, within a time budget)
+ */
+public final class SolrCacheWarmer {
+
+    /** Solr field containing the primary type */
+    public static final String FIELD_PRIMARY_TYPE = "jcr_primaryType";
+
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(SolrCacheWarmer.class);
+
+    /** Number of rows requested by each warming query */
+    private static final int ROWS = 10;
+
+    /** Executor sending the warming queries */
+    private final ExecutorService executor;
+
+    /** Server instance */
+    private final CommonsHttpSolrServer server;
+
+    /** Time budget for all the warming queries (milliseconds) */
+    private final int timeout;
+
+    /** Duration of the last warming (milliseconds, -1 if never warmed) */
+    private volatile long lastWarmingTime = -1L;
+
+    /**
+     * Constructor
+     * @param serverUrl Server URL
+     * @param threads Number of concurrent warming queries
+     * @param timeout Time budget for all the warming queries (milliseconds)
+     */
+    public SolrCacheWarmer(String serverUrl, int threads, int timeout) {
+        Assert.isTrue(threads > 0, "threads must be positive: " + threads);
+        Assert.isTrue(timeout > 0, "timeout must be positive: " + timeout);
+        try {
+            server = new CommonsHttpSolrServer(serverUrl);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("serverUrl is malformed: " + serverUrl, e);
+        }
+        server.setSoTimeout(timeout);
+        executor = Executors.newFixedThreadPool(threads);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Create the warming queries
+     * @param primaryTypes Indexed primary types
+     * @param fieldNames Indexed dynamic fields
+     * @return Queries
+     */
+    private static List<SolrQuery> createQueries(Collection<String> primaryTypes, Collection<String> fieldNames) {
+        List<SolrQuery> queries = new ArrayList<SolrQuery>();
+        for (String primaryType : primaryTypes) {
+            // Filter cache
+            queries.add(new SolrQuery("*:*").setRows(ROWS).addFilterQuery(
+                    FIELD_PRIMARY_TYPE + ":\"" + primaryType + '"'));
+        }
+        for (String fieldName : fieldNames) {
+            SolrConfiguration.FieldType fieldType = SolrConfiguration.FieldType.ofFieldName(fieldName);
+            if (fieldType == SolrConfiguration.FieldType.STRING || fieldType == SolrConfiguration.FieldType.BOOLEAN) {
+                // Field value cache
+                queries.add(new SolrQuery("*:*").setRows(0).setFacet(true).addFacetField(fieldName)
+                        .setFacetLimit(ROWS).setFacetMinCount(1));
+            } else if (SolrConfiguration.FieldType.isSingleValued(fieldName)) {
+                // Field cache (single-valued dates and numbers, multi-valued fields cannot be sorted on)
+                queries.add(new SolrQuery("*:*").setRows(ROWS).setSortField(fieldName, SolrQuery.ORDER.desc));
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Warm the caches of the current searcher, within the time budget
+     * @param primaryTypes Indexed primary types
+     * @param fieldNames Indexed dynamic fields
+     */
+    public void warm(Collection<String> primaryTypes, Collection<String> fieldNames) {
+        long startTime = System.currentTimeMillis();
+        Collection<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final SolrQuery query : createQueries(primaryTypes, fieldNames)) {
+            tasks.add(new Callable<Void>() {
+                /** {@inheritDoc} */
+                @Override
+                public Void call() throws Exception {
+                    server.query(query);
+                    return null;
+                }
+            });
+        }
+
+        int failed = 0;
+        int cancelled = 0;
+        try {
+            for (Future<Void> result : executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS)) {
+                try {
+                    result.get();
+                } catch (CancellationException e) {
+                    ++cancelled;
+                } catch (ExecutionException e) {
+                    ++failed;
+                    log.warn("Warming query failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Cache warming interrupted");
+            return;
+        }
+
+        lastWarmingTime = System.currentTimeMillis() - startTime;
+        if (cancelled > 0) {
+            log.warn("Cache warming exceeded its time budget of {} ms, {} of {} queries not run",
+                    new Object[]{timeout, cancelled, tasks.size()});
+        }
+        log.info("Caches warmed with {} queries ({} failed) in {} ms",
+                new Object[]{tasks.size() - cancelled, failed, lastWarmingTime});
+    }
+
+    /** @return Duration of the last warming (milliseconds, -1 if never warmed) */
+    public long getLastWarmingTime() {
+        return lastWarmingTime;
+    }
+
+    /** Stop warming */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
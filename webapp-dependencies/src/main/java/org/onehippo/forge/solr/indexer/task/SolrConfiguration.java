@@ -15,19 +15,28 @@
  */
 package org.onehippo.forge.solr.indexer.task;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeIterator;
+import javax.jcr.nodetype.PropertyDefinition;
 import javax.jcr.query.Query;
 
 import org.apache.commons.lang.StringUtils;
@@ -48,7 +57,18 @@ public final class SolrConfiguration {
     /** Query for reading the configuration nodes */
     private static final String QUERY =
             "SELECT * FROM " + Namespace.NODE + " WHERE jcr:path LIKE '/content/%' AND (" + Namespace.PROPERTY_NODE +
-                    " <> NULL OR " + Namespace.PROPERTY_PROPERTY + " <> NULL)";
+                    " <> NULL OR " + Namespace.PROPERTY_PROPERTY + " <> NULL OR " + Namespace.PROPERTY_ROOT +
+                    " <> NULL OR " + Namespace.PROPERTY_EXCLUDE + " <> NULL OR " + Namespace.PROPERTY_EXCLUDE_TYPE +
+                    " <> NULL OR " + Namespace.PROPERTY_FIELD_TYPE + " <> NULL)";
+
+    /** Default content root */
+    private static final String DEFAULT_ROOT = "/content/documents";
+
+    /** Prefix of the dynamic fields keys */
+    private static final String DYNAMIC_PREFIX = "dynamic_";
+
+    /** Separator between a property and its field type, in the field types configuration */
+    private static final String FIELD_TYPE_SEPARATOR = "=";
 
     /** Wrong character pattern for Solr ID */
     private static final Pattern WRONG_CHARACTER_PATTERN_FOR_SOLR_ID = Pattern.compile("[^a-zA-Z0-9_]");
@@ -72,12 +92,253 @@ public final class SolrConfiguration {
         return Collections.unmodifiableMap(solrFilterPropertiesValid);
     }
 
+    /**
+     * Read the values of a multiple string property
+     * @param node Node
+     * @param propertyName Property name
+     * @return Trimmed values (without blank ones)
+     * @throws RepositoryException -
+     */
+    private static Collection<String> readValues(Node node, String propertyName) throws RepositoryException {
+        Collection<String> values = new ArrayList<String>();
+        if (node.hasProperty(propertyName)) {
+            for (Value value : node.getProperty(propertyName).getValues()) {
+                String v = StringUtils.trimToNull(value.getString());
+                if (v != null) {
+                    values.add(v);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Compile a path glob (* matches within a path segment, ** across segments)
+     * @param glob Path glob
+     * @return Pattern
+     */
+    static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        String[] parts = glob.split("\\*\\*", -1);
+        for (int i = 0; i < parts.length; ++i) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            String[] segments = parts[i].split("\\*", -1);
+            for (int j = 0; j < segments.length; ++j) {
+                if (j > 0) {
+                    regex.append("[^/]*");
+                }
+                regex.append(Pattern.quote(segments[j]));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Get the key of a dynamic field
+     * @param propertyName JCR property name (or path)
+     * @return Dynamic field key
+     */
+    private static String toDynamicKey(String propertyName) {
+        return DYNAMIC_PREFIX + WRONG_CHARACTER_PATTERN_FOR_SOLR_ID.matcher(propertyName).replaceAll("_");
+    }
+
+    /**
+     * Get a field type by name
+     * @param fieldTypeName Field type name (case insensitive, nullable)
+     * @return Field type (null if unknown)
+     */
+    private static FieldType toFieldType(String fieldTypeName) {
+        if (fieldTypeName != null) {
+            String name = fieldTypeName.toUpperCase(Locale.ENGLISH);
+            for (FieldType fieldType : FieldType.values()) {
+                if (fieldType.name().equals(name)) {
+                    return fieldType;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if the values of a property can be indexed in a field type forced by configuration
+     * @param fieldType Field type forced by configuration
+     * @param definedType Field type derived from the property definitions
+     * @return TRUE if the values can be indexed
+     */
+    private static boolean isCompatible(FieldType fieldType, FieldType definedType) {
+        return fieldType == definedType || fieldType == FieldType.TEXT || fieldType == FieldType.STRING ||
+                definedType == FieldType.TEXT || definedType == FieldType.STRING ||
+                (fieldType == FieldType.TDOUBLE && definedType == FieldType.TLONG);
+    }
+
+    /**
+     * Get the node types of the nodes to index (the configured types and all their subtypes)
+     * @param session JCR session
+     * @param nodeNames Configured node types
+     * @return Node types
+     * @throws RepositoryException -
+     */
+    private static Collection<NodeType> getNodeTypes(Session session, Collection<String> nodeNames)
+            throws RepositoryException {
+        Collection<NodeType> nodeTypes = new ArrayList<NodeType>();
+        NodeTypeIterator nti = session.getWorkspace().getNodeTypeManager().getAllNodeTypes();
+        while (nti.hasNext()) {
+            NodeType nodeType = nti.nextNodeType();
+            for (String nodeName : nodeNames) {
+                if (nodeType.isNodeType(nodeName)) {
+                    nodeTypes.add(nodeType);
+                    break;
+                }
+            }
+        }
+        return nodeTypes;
+    }
+
+    /**
+     * Get the definitions of a property in node types (including the inherited definitions)
+     * @param nodeTypes Node types
+     * @param propertyName JCR property name (no definition for nested properties and properties of linked documents)
+     * @return Property definitions
+     */
+    private static Collection<PropertyDefinition> getPropertyDefinitions(Collection<NodeType> nodeTypes,
+            String propertyName) {
+        Collection<PropertyDefinition> definitions = new ArrayList<PropertyDefinition>();
+        if (JcrUtils.isOwnProperty(propertyName)) {
+            for (NodeType nodeType : nodeTypes) {
+                for (PropertyDefinition definition : nodeType.getPropertyDefinitions()) {
+                    if (propertyName.equals(definition.getName())) {
+                        definitions.add(definition);
+                    }
+                }
+            }
+        }
+        return definitions;
+    }
+
+    /** Solr field types of the dynamic fields (see the dynamic fields of the schema) */
+    public enum FieldType {
+
+        /** Tokenized text */
+        TEXT(DYNAMIC_PREFIX, DYNAMIC_PREFIX),
+
+        /** Untokenized string */
+        STRING("string_", "strings_"),
+
+        /** Date */
+        TDATE("tdate_", "tdates_"),
+
+        /** Long */
+        TLONG("tlong_", "tlongs_"),
+
+        /** Double */
+        TDOUBLE("tdouble_", "tdoubles_"),
+
+        /** Boolean */
+        BOOLEAN("boolean_", "booleans_");
+
+        /**
+         * Derive the field type from a JCR property type
+         * @param propertyType JCR property type
+         * @return Field type (text if undefined)
+         */
+        public static FieldType of(int propertyType) {
+            switch (propertyType) {
+                case PropertyType.DATE:
+                    return TDATE;
+                case PropertyType.LONG:
+                    return TLONG;
+                case PropertyType.DOUBLE:
+                case PropertyType.DECIMAL:
+                    return TDOUBLE;
+                case PropertyType.BOOLEAN:
+                    return BOOLEAN;
+                case PropertyType.NAME:
+                    return STRING;
+                default:
+                    return TEXT;
+            }
+        }
+
+        /**
+         * Get the field type of a dynamic field name
+         * @param fieldName Field name
+         * @return Field type (null if not a dynamic field)
+         */
+        public static FieldType ofFieldName(String fieldName) {
+            for (FieldType fieldType : values()) {
+                if (fieldName.startsWith(fieldType.prefix) || fieldName.startsWith(fieldType.multiValuedPrefix)) {
+                    return fieldType;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Check if a dynamic field name is single-valued (text fields are always multi-valued)
+         * @param fieldName Field name
+         * @return TRUE if the field is single-valued
+         */
+        public static boolean isSingleValued(String fieldName) {
+            FieldType fieldType = ofFieldName(fieldName);
+            return fieldType != null && fieldType != TEXT && !fieldName.startsWith(fieldType.multiValuedPrefix);
+        }
+
+        /** Field name prefix */
+        private final String prefix;
+
+        /** Field name prefix of the multi-valued fields */
+        private final String multiValuedPrefix;
+
+        /**
+         * Constructor
+         * @param prefix Field name prefix
+         * @param multiValuedPrefix Field name prefix of the multi-valued fields
+         */
+        private FieldType(String prefix, String multiValuedPrefix) {
+            this.prefix = prefix;
+            this.multiValuedPrefix = multiValuedPrefix;
+        }
+
+        /**
+         * Get the field name of a dynamic field key
+         * @param key Dynamic field key
+         * @param multiValued TRUE if the field is multi-valued
+         * @return Field name
+         */
+        public String getFieldName(String key, boolean multiValued) {
+            return (multiValued ? multiValuedPrefix : prefix) + key.substring(DYNAMIC_PREFIX.length());
+        }
+    }
+
+    /** Dynamic fields keys */
+    private final Collection<String> dynamicKeys;
+
+    /** Field types forced by configuration (key = dynamic field key) */
+    private final Map<String, FieldType> fieldTypes;
+
+    /** Field types derived from the property definitions of the nodes to index (key = dynamic field key) */
+    private final Map<String, FieldType> definedTypes;
+
+    /** Keys of the dynamic fields defined as single-valued by all the nodes to index */
+    private final Collection<String> singleValuedKeys;
+
+    /** Path globs of the subtrees excluded from the traversal */
+    private final Collection<Pattern> excludedPaths;
+
+    /** Folder types excluded from the traversal */
+    private final Collection<String> excludedTypes;
+
     /** Nodes to index */
     private final Collection<String> nodes;
 
     /** Properties to index */
     private final Map<String, String> properties;
 
+    /** Content roots to traverse */
+    private final List<String> roots;
+
     /** JCR session */
     private final Session session;
 
@@ -91,6 +352,11 @@ public final class SolrConfiguration {
 
         Collection<String> n = new HashSet<String>();
         Map<String, String> p = new HashMap<String, String>(solrFilterProperties);
+        Collection<String> d = new HashSet<String>();
+        Map<String, FieldType> t = new HashMap<String, FieldType>();
+        List<String> r = new ArrayList<String>();
+        Collection<Pattern> ep = new ArrayList<Pattern>();
+        Collection<String> et = new HashSet<String>();
 
         try {
             // Read configuration nodes
@@ -116,27 +382,199 @@ public final class SolrConfiguration {
                     for (Value value : node.getProperty(Namespace.PROPERTY_PROPERTY).getValues()) {
                         String propertyName = StringUtils.trimToNull(value.getString());
                         if (propertyName != null) {
-                            p.put("dynamic_" +
-                                    WRONG_CHARACTER_PATTERN_FOR_SOLR_ID.matcher(propertyName).replaceAll("_"),
-                                    propertyName);
+                            String key = toDynamicKey(propertyName);
+                            String previous = p.put(key, propertyName);
+                            if (previous != null && !previous.equals(propertyName)) {
+                                log.warn("Properties {} and {} share the Solr field {}, only {} is indexed",
+                                        new Object[]{previous, propertyName, key, propertyName});
+                            }
+                            d.add(key);
                         }
                     }
                 }
+
+                // Read field types forced by configuration (property=type)
+                for (String value : readValues(node, Namespace.PROPERTY_FIELD_TYPE)) {
+                    String propertyName =
+                            StringUtils.trimToNull(StringUtils.substringBefore(value, FIELD_TYPE_SEPARATOR));
+                    FieldType fieldType =
+                            toFieldType(StringUtils.trimToNull(StringUtils.substringAfter(value, FIELD_TYPE_SEPARATOR)));
+                    if (propertyName == null || fieldType == null) {
+                        log.warn("Skip invalid Solr field type: {}", value);
+                        continue;
+                    }
+                    FieldType previous = t.put(toDynamicKey(propertyName), fieldType);
+                    if (previous != null && previous != fieldType) {
+                        log.warn("Conflicting Solr field types for property {}: {} and {}, {} is used",
+                                new Object[]{propertyName, previous, fieldType, fieldType});
+                    }
+                }
+
+                // Read content roots and exclusions (path globs, folder types)
+                for (String root : readValues(node, Namespace.PROPERTY_ROOT)) {
+                    if (!r.contains(root)) {
+                        r.add(root);
+                    }
+                }
+                for (String glob : readValues(node, Namespace.PROPERTY_EXCLUDE)) {
+                    ep.add(compileGlob(glob));
+                }
+                et.addAll(readValues(node, Namespace.PROPERTY_EXCLUDE_TYPE));
             }
 
         } catch (RepositoryException e) {
             log.error("An error occurred while loading the Solr configuration", e);
         }
 
+        // Derive the field types from the property definitions of the nodes to index, and validate the forced ones
+        Map<String, FieldType> dt = new HashMap<String, FieldType>();
+        Collection<String> sv = new HashSet<String>();
+        try {
+            Collection<NodeType> nodeTypes = getNodeTypes(session, n);
+            for (String key : d) {
+                String propertyName = p.get(key);
+                Collection<PropertyDefinition> definitions = getPropertyDefinitions(nodeTypes, propertyName);
+                if (definitions.isEmpty()) {
+                    // Nested, linked or residual property: text, unless forced
+                    continue;
+                }
+                Collection<FieldType> types = new TreeSet<FieldType>();
+                boolean isMultiple = false;
+                for (PropertyDefinition definition : definitions) {
+                    types.add(FieldType.of(definition.getRequiredType()));
+                    isMultiple |= definition.isMultiple();
+                }
+                FieldType definedType = FieldType.TEXT;
+                if (types.size() == 1) {
+                    definedType = types.iterator().next();
+                } else {
+                    log.warn("Property {} is defined with conflicting types {} by the nodes to index, indexed as text",
+                            propertyName, types);
+                }
+                dt.put(key, definedType);
+                if (!isMultiple) {
+                    sv.add(key);
+                }
+                FieldType fieldType = t.get(key);
+                if (fieldType != null && !isCompatible(fieldType, definedType)) {
+                    log.warn("Skip Solr field type {} of property {}, defined as {}",
+                            new Object[]{fieldType, propertyName, definedType});
+                    t.remove(key);
+                }
+            }
+        } catch (RepositoryException e) {
+            log.error("An error occurred while reading the definitions of the nodes to index", e);
+        }
+        for (Iterator<String> i = t.keySet().iterator(); i.hasNext();) {
+            String key = i.next();
+            if (!d.contains(key)) {
+                log.warn("Skip Solr field type of {}, which is not an indexed property", key);
+                i.remove();
+            }
+        }
+
         nodes = Collections.unmodifiableCollection(n);
         properties = Collections.unmodifiableMap(p);
+        dynamicKeys = Collections.unmodifiableCollection(d);
+        fieldTypes = Collections.unmodifiableMap(t);
+        definedTypes = Collections.unmodifiableMap(dt);
+        singleValuedKeys = Collections.unmodifiableCollection(sv);
+        roots = Collections.unmodifiableList(r.isEmpty() ? Collections.singletonList(DEFAULT_ROOT) : r);
+        excludedPaths = Collections.unmodifiableCollection(ep);
+        excludedTypes = Collections.unmodifiableCollection(et);
         this.session = session;
     }
 
     /** {@inheritDoc} */
     @Override
     public String toString() {
-        return getClass().getSimpleName() + "[nodes = " + getNodes() + ", properties = " + getProperties() + ']';
+        return getClass().getSimpleName() + "[nodes = " + getNodes() + ", properties = " + getProperties() +
+                ", fieldTypes = " + fieldTypes + ", definedTypes = " + definedTypes + ", singleValuedKeys = " +
+                singleValuedKeys + ", roots = " + roots + ", excludedPaths = " + excludedPaths +
+                ", excludedTypes = " + excludedTypes + ']';
+    }
+
+    /**
+     * Get the Solr field name of a property: dynamic fields are typed by configuration, or by the property definitions
+     * when the fields are typed (text otherwise), and single-valued when all the definitions are
+     * @param key Field key
+     * @param typed TRUE if the field types are derived from the property definitions
+     * @return Field name
+     */
+    public String getFieldName(String key, boolean typed) {
+        if (!isDynamic(key)) {
+            return key;
+        }
+        FieldType fieldType = fieldTypes.get(key);
+        if (fieldType == null) {
+            fieldType = typed && definedTypes.containsKey(key) ? definedTypes.get(key) : FieldType.TEXT;
+        }
+        return fieldType.getFieldName(key, !singleValuedKeys.contains(key));
+    }
+
+    /**
+     * Check if a field is dynamic (configured in the repository)
+     * @param key Field key
+     * @return TRUE if the field is dynamic
+     */
+    public boolean isDynamic(String key) {
+        return dynamicKeys.contains(key);
+    }
+
+    /**
+     * Check if a path matches an excluded path glob (its ancestors are not checked, see
+     * {@link #isInExcludedSubtree(String)})
+     * @param path Path
+     * @return TRUE if the path is excluded
+     */
+    public boolean isExcluded(String path) {
+        for (Pattern excludedPath : excludedPaths) {
+            if (excludedPath.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if a path, or one of its ancestors, matches an excluded path glob
+     * @param path Path
+     * @return TRUE if the path is in an excluded subtree
+     */
+    public boolean isInExcludedSubtree(String path) {
+        if (excludedPaths.isEmpty()) {
+            return false;
+        }
+        for (String p = path; p.length() > 0; p = StringUtils.substringBeforeLast(p, "/")) {
+            if (isExcluded(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the configuration deciding which subtrees are traversed, and which documents are found there (nodes, roots and
+     * exclusions), so that learned traversal shortcuts can be discarded when it changes
+     * @return Traversal signature
+     */
+    public String getTraversalSignature() {
+        return "nodes = " + new TreeSet<String>(nodes) + ", roots = " + roots + ", excludedPaths = " + excludedPaths +
+                ", excludedTypes = " + new TreeSet<String>(excludedTypes);
+    }
+
+    /**
+     * Check if a folder is of an excluded type
+     * @param node Folder node
+     * @return TRUE if the folder is excluded
+     */
+    public boolean isExcluded(Node node) {
+        return !excludedTypes.isEmpty() && JcrUtils.isOfType(node, excludedTypes);
+    }
+
+    /** @return Content roots to traverse */
+    public List<String> getRoots() {
+        return roots;
     }
 
     /** @return Nodes to index */
@@ -172,5 +610,17 @@ public final class SolrConfiguration {
 
         /** Configuration property for properties */
         String PROPERTY_PROPERTY = "solr:property";
+
+        /** Configuration property for field types (property=type) */
+        String PROPERTY_FIELD_TYPE = "solr:fieldtype";
+
+        /** Configuration property for content roots */
+        String PROPERTY_ROOT = "solr:root";
+
+        /** Configuration property for excluded path globs */
+        String PROPERTY_EXCLUDE = "solr:exclude";
+
+        /** Configuration property for excluded folder types */
+        String PROPERTY_EXCLUDE_TYPE = "solr:excludetype";
     }
 }
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.springframework.util.Assert;
+
+/**
+ * Consistency verifier: compares the UUIDs of the indexable documents of the repository with the UUIDs of the Solr
+ * index. The Solr UUIDs are streamed page by page, sorted, and merged with the sorted repository UUIDs, so that only
+ * compact arrays of UUIDs (the repository ones and the differences) are held in memory.
+ */
+public final class SolrConsistencyVerifier {
+
+    /** Solr field containing the UUID */
+    public static final String FIELD_UUID = "jcr_uuid";
+
+    /** Differences between the repository and the index */
+    public static final class Drift {
+
+        /** UUIDs of the documents missing in the index */
+        private final UuidArray missing = new UuidArray();
+
+        /** UUIDs of the indexed documents which are not in the repository anymore */
+        private final UuidArray orphans = new UuidArray();
+
+        /** IDs of the indexed documents which are not canonical UUIDs (e.g. corrupt documents) */
+        private final List<String> invalidOrphans = new ArrayList<String>();
+
+        /** @return UUIDs of the documents missing in the index (sorted) */
+        public UuidArray getMissing() {
+            return missing;
+        }
+
+        /** @return UUIDs of the indexed documents which are not in the repository anymore (sorted) */
+        public UuidArray getOrphans() {
+            return orphans;
+        }
+
+        /** @return IDs of the indexed documents which are not canonical UUIDs, thus not in the repository either */
+        public List<String> getInvalidOrphans() {
+            return invalidOrphans;
+        }
+
+        /** @return Number of indexed documents which are not in the repository (valid UUIDs or not) */
+        public int getOrphanCount() {
+            return orphans.size() + invalidOrphans.size();
+        }
+
+        /** @return TRUE if the index is consistent with the repository */
+        public boolean isEmpty() {
+            return missing.size() == 0 && getOrphanCount() == 0;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[missing = " + missing.size() + ", orphans = " + getOrphanCount() +
+                    " (" + invalidOrphans.size() + " invalid)]";
+        }
+    }
+
+    /**
+     * Escape a term quoted in a query
+     * @param term Term
+     * @return Escaped term
+     */
+    private static String escapeQuoted(String term) {
+        return term.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /** Number of Solr UUIDs read per request */
+    private final int pageSize;
+
+    /** Server instance */
+    private final SolrServer server;
+
+    /**
+     * Constructor
+     * @param server Server instance
+     * @param pageSize Number of Solr UUIDs read per request
+     */
+    public SolrConsistencyVerifier(SolrServer server, int pageSize) {
+        Assert.notNull(server, "server must not be null");
+        Assert.isTrue(pageSize > 0, "pageSize must be positive: " + pageSize);
+        this.server = server;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Compare the repository UUIDs with the index
+     * @param repositoryUuids Repository UUIDs (sorted, distinct)
+     * @return Differences
+     * @throws SolrServerException -
+     */
+    public Drift verify(UuidArray repositoryUuids) throws SolrServerException {
+        Drift drift = new Drift();
+        int i = 0;
+        String last = null;
+        int pageLength;
+        do {
+            // Keyset pagination: each page starts after the last UUID of the previous one (in the main query, so that
+            // the pages do not fill the filter cache)
+            String q = last == null ? "*:*" : FIELD_UUID + ":{\"" + escapeQuoted(last) + "\" TO *}";
+            SolrQuery query = new SolrQuery(q).setFields(FIELD_UUID).setRows(pageSize);
+            query.addSortField(FIELD_UUID, SolrQuery.ORDER.asc);
+            SolrDocumentList page = server.query(query).getResults();
+            pageLength = page.size();
+            for (SolrDocument document : page) {
+                last = String.valueOf(document.getFieldValue(FIELD_UUID));
+                UUID uuid = UuidArray.parse(last);
+                if (uuid == null || !uuid.toString().equals(last)) {
+                    // Not in the repository, and not in the sort order of the canonical UUIDs
+                    drift.invalidOrphans.add(last);
+                    continue;
+                }
+                while (i < repositoryUuids.size() && UuidArray.compare(repositoryUuids.get(i), uuid) < 0) {
+                    drift.missing.add(repositoryUuids.get(i));
+                    ++i;
+                }
+                if (i < repositoryUuids.size() && UuidArray.compare(repositoryUuids.get(i), uuid) == 0) {
+                    ++i;
+                } else {
+                    drift.orphans.add(uuid);
+                }
+            }
+        } while (pageLength == pageSize);
+        while (i < repositoryUuids.size()) {
+            drift.missing.add(repositoryUuids.get(i));
+            ++i;
+        }
+        return drift;
+    }
+}
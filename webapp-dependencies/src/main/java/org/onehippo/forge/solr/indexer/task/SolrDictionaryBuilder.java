@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Solr dictionaries (spellcheck, suggest) builder: rebuilds the dictionaries in the background, only when the indexed
+ * content changed since the last build, within a time budget.
+ * The time budget is enforced by the client only: a build request which times out keeps running on the server, so the
+ * next builds are skipped during a cooldown of one more time budget, not to overlap with it.
+ */
+public final class SolrDictionaryBuilder {
+
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(SolrDictionaryBuilder.class);
+
+    /** Executor building the dictionaries, off the indexation path */
+    private final ExecutorService executor;
+
+    /** Request handlers whose dictionaries are built (e.g. /spell, /suggest) */
+    private final Collection<String> handlers;
+
+    /** Server instance */
+    private final CommonsHttpSolrServer server;
+
+    /** Time budget for building all the dictionaries (milliseconds) */
+    private final int timeout;
+
+    /** Pending build (nullable) */
+    private Future<?> build;
+
+    /** Fingerprint of the content the dictionaries were last built from (null if never built) */
+    private volatile Long fingerprint;
+
+    /** Duration of the last successful build (milliseconds, -1 if never built) */
+    private volatile long lastBuildTime = -1L;
+
+    /** Time until which the builds are skipped, since a timed out build may still run on the server (milliseconds) */
+    private volatile long cooldownEndTime;
+
+    /**
+     * Constructor
+     * @param serverUrl Server URL
+     * @param handlers Request handlers whose dictionaries are built
+     * @param timeout Time budget for building all the dictionaries (milliseconds)
+     */
+    public SolrDictionaryBuilder(String serverUrl, Collection<String> handlers, int timeout) {
+        Assert.notNull(handlers, "handlers must not be null");
+        Assert.isTrue(timeout > 0, "timeout must be positive: " + timeout);
+        try {
+            server = new CommonsHttpSolrServer(serverUrl);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("serverUrl is malformed: " + serverUrl, e);
+        }
+        executor = Executors.newSingleThreadExecutor();
+        this.handlers = new ArrayList<String>(handlers);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Build the dictionaries in the background, if the content changed since the last build
+     * @param contentFingerprint Fingerprint of the indexed content
+     */
+    public synchronized void buildIfChanged(final long contentFingerprint) {
+        if (fingerprint != null && fingerprint == contentFingerprint) {
+            log.info("Indexed content did not change, dictionaries build skipped");
+            return;
+        }
+        submit(contentFingerprint);
+    }
+
+    /**
+     * Build the dictionaries in the background, after a partial change of the indexed content (e.g. repair), whose
+     * fingerprint is unknown
+     */
+    public synchronized void rebuild() {
+        // The next indexation will trigger the build again
+        fingerprint = null;
+        submit(null);
+    }
+
+    /**
+     * Submit a build, unless the previous one is still running
+     * @param contentFingerprint Fingerprint of the indexed content (null if unknown)
+     */
+    private void submit(final Long contentFingerprint) {
+        // The fingerprint is not updated, so next indexation will trigger the build again
+        if (build != null && !build.isDone()) {
+            log.warn("Previous dictionaries build is still running, build skipped");
+            return;
+        }
+        if (System.currentTimeMillis() < cooldownEndTime) {
+            log.warn("Previous dictionaries build timed out and may still be running on the server, build skipped");
+            return;
+        }
+        build = executor.submit(new Runnable() {
+            /** {@inheritDoc} */
+            @Override
+            public void run() {
+                if (build()) {
+                    fingerprint = contentFingerprint;
+                }
+            }
+        });
+    }
+
+    /**
+     * Build the dictionaries, within the time budget
+     * @return TRUE if all dictionaries were built
+     */
+    private boolean build() {
+        long startTime = System.currentTimeMillis();
+        for (String handler : handlers) {
+            long remainingTime = timeout - (System.currentTimeMillis() - startTime);
+            if (remainingTime <= 0L) {
+                log.warn("Dictionaries build exceeded its time budget of {} ms, {} not built", timeout, handler);
+                return false;
+            }
+            SolrQuery query = new SolrQuery("*:*").setRows(0);
+            query.set("spellcheck", true);
+            query.set("spellcheck.build", true);
+            QueryRequest request = new QueryRequest(query);
+            request.setPath(handler);
+            try {
+                server.setSoTimeout((int) remainingTime);
+                request.process(server);
+                log.debug("Dictionary built for {}", handler);
+            } catch (SolrServerException e) {
+                if (isTimeout(e)) {
+                    cooldownEndTime = System.currentTimeMillis() + timeout;
+                    log.warn("Dictionary build for {} exceeded its time budget of {} ms, next builds skipped meanwhile",
+                            handler, timeout);
+                } else {
+                    log.error("Failed to build dictionary for " + handler, e);
+                }
+                return false;
+            } catch (SolrException e) {
+                log.error("Failed to build dictionary for " + handler, e);
+                return false;
+            }
+        }
+        lastBuildTime = System.currentTimeMillis() - startTime;
+        log.info("Dictionaries built for {} in {} ms", handlers, lastBuildTime);
+        return true;
+    }
+
+    /**
+     * Check if a request failed because it timed out
+     * @param exception Exception
+     * @return TRUE if the request timed out
+     */
+    private static boolean isTimeout(Throwable exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if (t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return Duration of the last successful build (milliseconds, -1 if never built) */
+    public long getLastBuildTime() {
+        return lastBuildTime;
+    }
+
+    /** Stop building */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.springframework.util.Assert;
+
+/**
+ * Export sink: writes the mapped documents to a directory, one gzipped javabin chunk per documents batch, so that they
+ * can be loaded into another Solr server without traversing the repository again
+ */
+public final class SolrExportSink {
+
+    /** Chunk file name prefix */
+    private static final String CHUNK_PREFIX = "chunk-";
+
+    /** Chunk file name suffix */
+    private static final String CHUNK_SUFFIX = ".javabin.gz";
+
+    /** Chunk files filter */
+    private static final FileFilter CHUNK_FILTER = new FileFilter() {
+        /** {@inheritDoc} */
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().startsWith(CHUNK_PREFIX) && file.getName().endsWith(CHUNK_SUFFIX);
+        }
+    };
+
+    /**
+     * Get the chunks of an export directory
+     * @param directory Export directory
+     * @return Chunks, in order
+     */
+    public static File[] getChunks(File directory) {
+        File[] chunks = directory.listFiles(CHUNK_FILTER);
+        if (chunks == null) {
+            return new File[0];
+        }
+        Arrays.sort(chunks);
+        return chunks;
+    }
+
+    /**
+     * Read the documents of a chunk
+     * @param chunk Chunk
+     * @return Documents
+     * @throws IOException -
+     */
+    public static List<SolrInputDocument> readChunk(File chunk) throws IOException {
+        final List<SolrInputDocument> documents = new ArrayList<SolrInputDocument>();
+        RandomAccessFile file = new RandomAccessFile(chunk, "r");
+        try {
+            InputStream in = new GZIPInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+            new JavaBinUpdateRequestCodec().unmarshal(in, new JavaBinUpdateRequestCodec.StreamingDocumentHandler() {
+                /** {@inheritDoc} */
+                @Override
+                public void document(SolrInputDocument document, UpdateRequest request) {
+                    documents.add(document);
+                }
+            });
+        } finally {
+            file.close();
+        }
+        return documents;
+    }
+
+    /** Number of chunks written */
+    private final AtomicInteger chunks = new AtomicInteger();
+
+    /** Export directory */
+    private final File directory;
+
+    /**
+     * Constructor
+     * @param directory Export directory (created if missing, must not contain chunks)
+     */
+    public SolrExportSink(File directory) {
+        Assert.notNull(directory, "directory must not be null");
+        Assert.isTrue(directory.isDirectory() || directory.mkdirs(), "directory cannot be created: " + directory);
+        Assert.isTrue(getChunks(directory).length == 0, "directory already contains an export: " + directory);
+        this.directory = directory;
+    }
+
+    /**
+     * Write documents into a new chunk (thread-safe). The chunk is written under a temporary name and then renamed, so
+     * that incomplete chunks are never read.
+     * @param documents Documents
+     * @throws IOException -
+     */
+    public void write(Collection<SolrInputDocument> documents) throws IOException {
+        String name = String.format("%s%08d%s", CHUNK_PREFIX, chunks.incrementAndGet(), CHUNK_SUFFIX);
+        File tmp = new File(directory, name + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            new JavaBinUpdateRequestCodec().marshal(new UpdateRequest().add(documents), out);
+            out.close();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(new File(directory, name))) {
+            throw new IOException("Failed to rename export chunk " + tmp);
+        }
+    }
+
+    /** @return Export directory */
+    public File getDirectory() {
+        return directory;
+    }
+}
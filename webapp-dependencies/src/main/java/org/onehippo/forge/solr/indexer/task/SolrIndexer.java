@@ -15,12 +15,26 @@
  */
 package org.onehippo.forge.solr.indexer.task;
 
+import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Credentials;
 import javax.jcr.Repository;
@@ -32,13 +46,18 @@ import org.apache.commons.lang.mutable.MutableInt;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 import org.apache.solr.client.solrj.impl.StreamingUpdateSolrServer;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.SolrPingResponse;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.hippoecm.hst.site.HstServices;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 
@@ -47,7 +66,7 @@ import org.springframework.util.Assert;
  * @author Mickaël Tricot
  * @version $Id: SolrIndexer.java 129982 2012-02-06 22:12:13Z mtricot $
  */
-public final class SolrIndexer implements InitializingBean {
+public final class SolrIndexer implements InitializingBean, DisposableBean {
 
     /** Logger */
     private static final Logger log = LoggerFactory.getLogger(SolrIndexer.class);
@@ -55,18 +74,84 @@ public final class SolrIndexer implements InitializingBean {
     /** Query for all Solr entries */
     private static final String QUERY_ALL = "*:*";
 
+    /** Snapshot directory name prefix (followed by the indexation start time) */
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    /** Suffix of the snapshot directories being written */
+    private static final String SNAPSHOT_TMP_SUFFIX = ".tmp";
+
+    /** Minimum number of subtrees per reader thread, so that the readers stay busy until the end of the traversal */
+    private static final int SUBTREES_PER_READER = 4;
+
+    /** Number of Solr UUIDs read per request when verifying the index */
+    private static final int VERIFY_PAGE_SIZE = 10000;
+
+    /** Time a batch may wait for the send backlog before the run is spilled (milliseconds) */
+    private static final long SPILL_BACKLOG_TIMEOUT = TimeUnit.MINUTES.toMillis(1L);
+
+    /** FNV-1a 64-bit offset basis */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /** FNV-1a 64-bit prime */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Compute a document fingerprint (FNV-1a hash of the field names and values, without copying them)
+     * @param document Document
+     * @return Fingerprint
+     */
+    private static long fingerprint(SolrInputDocument document) {
+        long hash = FNV_OFFSET_BASIS;
+        for (SolrInputField field : document) {
+            hash = fingerprint(hash, field.getName());
+            for (Object value : field) {
+                hash = fingerprint(hash, value instanceof CharSequence ? (CharSequence) value : String.valueOf(value));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Continue a FNV-1a hash with the characters of a sequence, and a separator
+     * @param hash Hash
+     * @param s Characters
+     * @return Hash
+     */
+    private static long fingerprint(long hash, CharSequence s) {
+        long h = hash;
+        for (int i = 0; i < s.length(); ++i) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return (h ^ 0xFFFF) * FNV_PRIME;
+    }
+
+    /**
+     * Delete a directory and its files
+     * @param directory Directory
+     */
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("Failed to delete {}", file);
+                }
+            }
+        }
+        if (!directory.delete()) {
+            log.warn("Failed to delete {}", directory);
+        }
+    }
+
     /**
      * Create a JCR session
      * @param logError Log ERROR if the session cannot be created (otherwise INFO)
      * @return Session (nullable)
      */
-    private static Session createSession(boolean logError) {
+    private Session createSession(boolean logError) {
         Session session = null;
-        if (HstServices.isAvailable()) {
+        if (repository != null) {
             try {
-                Repository repository = HstServices.getComponentManager().getComponent(Repository.class.getName());
-                Credentials credentials =
-                        HstServices.getComponentManager().getComponent(Credentials.class.getName() + ".default");
                 session = repository.login(credentials);
             } catch (RepositoryException e) {
                 if (logError) {
@@ -75,6 +160,19 @@ public final class SolrIndexer implements InitializingBean {
                     log.info("Cannot create a JCR session (yet): {}", e.getMessage());
                 }
             }
+        } else if (HstServices.isAvailable()) {
+            try {
+                Repository r = HstServices.getComponentManager().getComponent(Repository.class.getName());
+                Credentials c =
+                        HstServices.getComponentManager().getComponent(Credentials.class.getName() + ".default");
+                session = r.login(c);
+            } catch (RepositoryException e) {
+                if (logError) {
+                    log.error("Cannot create a JCR session", e);
+                } else {
+                    log.info("Cannot create a JCR session (yet): {}", e.getMessage());
+                }
+            }
         } else {
             if (logError) {
                 log.error("Cannot create a JCR session because HST services are not available.");
@@ -86,7 +184,7 @@ public final class SolrIndexer implements InitializingBean {
     }
 
     /** Wait for the repository to be initialized */
-    private static void waitForRepository() {
+    private void waitForRepository() {
         Session session = null;
         try {
             while (session == null) {
@@ -117,15 +215,120 @@ public final class SolrIndexer implements InitializingBean {
         }
     }
 
+    /** Failure to send a batch while a spill queue is set: the whole run is spilled instead */
+    private static final class SendFailedException extends RuntimeException {
+
+        /**
+         * Constructor
+         * @param message Message
+         */
+        private SendFailedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Fingerprint of the content indexed during the current run (sum of the documents fingerprints, so that it does not
+     * depend on the order of the documents)
+     */
+    private final AtomicLong contentFingerprint = new AtomicLong();
+
+    /** Dictionaries builder, run after indexation changed content (nullable) */
+    private SolrDictionaryBuilder dictionaryBuilder;
+
+    /** Request handlers whose dictionaries are built after indexation changed content */
+    private List<String> dictionaryHandlers = Collections.emptyList();
+
+    /** Time budget for building the dictionaries (milliseconds) */
+    private int dictionaryBuildTimeout = (int) TimeUnit.MINUTES.toMillis(10L);
+
+    /** Cache warmer, run after each commit (nullable) */
+    private SolrCacheWarmer cacheWarmer;
+
+    /** Primary types of the documents sent since the index was rebuilt, warmed after each commit */
+    private final Set<String> warmedPrimaryTypes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Dynamic fields of the documents sent since the index was rebuilt, warmed after each commit */
+    private final Set<String> warmedFieldNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Number of redundant live variants not indexed during the last indexation (-1 if never indexed) */
+    private volatile long lastCollapsedVariants = -1L;
+
+    /** Number of concurrent warming queries (0 = no warming) */
+    private int warmingThreads;
+
+    /** Time budget for warming the caches (milliseconds) */
+    private int warmingTimeout = (int) TimeUnit.SECONDS.toMillis(30L);
+
     /**
      * Flag indicating if an error was intercepted (shared object, because the StreamingUpdateSolrServer
      * implementation is multi-threaded and does not throw directly exceptions)
      */
     private final MutableBoolean errorIntercepted;
 
+    /** Flag indicating if a batch could not be sent because the server was not reachable (intercepted error) */
+    private final MutableBoolean sendFailed = new MutableBoolean();
+
     /** Queue size */
     private final int queueSize;
 
+    /** Number of threads reading the documents subtrees concurrently (one JCR session each) */
+    private int readerThreads = 1;
+
+    /** Number of visited nodes after which a reader session is refreshed (0 = never) */
+    private int sessionRefreshInterval;
+
+    /** Number of days during which modified documents are indexed first (0 = no prioritization) */
+    private int priorityWindowDays;
+
+    /** UUIDs of the documents indexed during the current run (null if not collected) */
+    private volatile UuidArray indexedUuids;
+
+    /** Flag indicating if the dynamic fields are typed from the JCR property definitions */
+    private boolean typedFields;
+
+    /** Maximum number of cached linked documents values (0 = default) */
+    private int linkCacheSize;
+
+    /** Number of runs during which the learned barren subtrees are skipped before being learned again (0 = never) */
+    private int learnedPruningRuns;
+
+    /** Paths of the barren subtrees learned during the last complete traversal (null if not learned) */
+    private Set<String> prunedPaths;
+
+    /** Traversal signature of the configuration the barren subtrees were learned with */
+    private String prunedSignature;
+
+    /** Number of runs since the barren subtrees were learned */
+    private int runsSincePruningLearned;
+
+    /** Spill queue, absorbing the updates while the server is not available (nullable) */
+    private SolrSpillQueue spillQueue;
+
+    /** Server instance reporting errors synchronously, for draining the spill queue (nullable) */
+    private SolrServer spillServer;
+
+    /** Flag indicating if the current indexation is spilled instead of being sent to the server */
+    private volatile boolean spilling;
+
+    /** Flag indicating if the current indexation is spilled when a batch cannot be sent (not loads nor repairs) */
+    private volatile boolean spillable;
+
+    /** Export sink the documents are written to (nullable) */
+    private volatile SolrExportSink exportSink;
+
+    /** Flag indicating if the documents are only exported (not sent to the server) */
+    private volatile boolean exporting;
+
+    /** Directory of the snapshots taken during indexations, for bootstrapping an empty index (nullable) */
+    private File snapshotDirectory;
+
+    /** Repository the sessions are created with (null for the HST repository) */
+    private Repository repository;
+
+    /** Credentials of the repository sessions */
+    private Credentials credentials;
+
     /** Server instance */
     private final SolrServer server;
 
@@ -135,6 +338,9 @@ public final class SolrIndexer implements InitializingBean {
     /** Solr filter properties to index (key = Solr ID, value = JCR property name) */
     private Map<String, String> solrFilterProperties;
 
+    /** Number of threads sending the documents batches to the server */
+    private final int threadCount;
+
     /**
      * Constructor
      * @param serverUrl server URL
@@ -142,16 +348,211 @@ public final class SolrIndexer implements InitializingBean {
      * @param solrFilterProperties Solr filter properties to index (key = Solr ID, value = JCR property name)
      */
     public SolrIndexer(String serverUrl, int queueSize, Map<String, String> solrFilterProperties) {
+        this(serverUrl, queueSize, 1, solrFilterProperties);
+    }
+
+    /**
+     * Constructor
+     * @param serverUrl server URL
+     * @param queueSize Queue size
+     * @param threadCount Number of threads sending the documents batches to the server
+     * @param solrFilterProperties Solr filter properties to index (key = Solr ID, value = JCR property name)
+     */
+    public SolrIndexer(String serverUrl, int queueSize, int threadCount, Map<String, String> solrFilterProperties) {
+        errorIntercepted = new MutableBoolean();
+        server = createServer(serverUrl, queueSize, threadCount);
+        this.serverUrl = serverUrl;
+        this.queueSize = queueSize;
+        this.threadCount = threadCount;
+        this.solrFilterProperties = SolrConfiguration.validateSolrFilterProperties(solrFilterProperties);
+    }
+
+    /**
+     * Constructor, with a server instance reporting errors synchronously (e.g. an embedded server for the scale tests)
+     * @param server Server instance
+     * @param serverUrl URL of the same server, for the dictionaries builder, the cache warmer and the spill queue (which
+     * use their own HTTP clients)
+     * @param queueSize Queue size
+     * @param threadCount Number of threads sending the documents batches to the server
+     * @param solrFilterProperties Solr filter properties to index (key = Solr ID, value = JCR property name)
+     */
+    SolrIndexer(SolrServer server, String serverUrl, int queueSize, int threadCount,
+            Map<String, String> solrFilterProperties) {
+        Assert.notNull(server, "server must be not null");
+        Assert.notNull(serverUrl, "serverUrl must be not null");
+        Assert.isTrue(!serverUrl.isEmpty(), "serverUrl must be not empty");
+        Assert.isTrue(queueSize > 0, "queueSize must be positive: " + queueSize);
+        Assert.isTrue(threadCount > 0, "threadCount must be positive: " + threadCount);
         errorIntercepted = new MutableBoolean();
-        server = createServer(serverUrl, queueSize);
+        this.server = server;
         this.serverUrl = serverUrl;
         this.queueSize = queueSize;
+        this.threadCount = threadCount;
         this.solrFilterProperties = SolrConfiguration.validateSolrFilterProperties(solrFilterProperties);
     }
 
-    /** Initialize index if empty */
+    /**
+     * Set the repository the sessions are created with, instead of the HST repository (e.g. an in-memory repository
+     * for the scale tests)
+     * @param repository Repository
+     * @param credentials Credentials
+     */
+    void setRepository(Repository repository, Credentials credentials) {
+        this.repository = repository;
+        this.credentials = credentials;
+    }
+
+    /**
+     * Set the time budget for building the dictionaries (default: 10 minutes). It is enforced by the client only: after a
+     * timeout, the next builds are skipped during one more time budget, while the server may still be building.
+     * @param dictionaryBuildTimeout Dictionaries build timeout (milliseconds)
+     */
+    public void setDictionaryBuildTimeout(int dictionaryBuildTimeout) {
+        Assert.isTrue(dictionaryBuildTimeout > 0, "dictionaryBuildTimeout must be positive: " + dictionaryBuildTimeout);
+        this.dictionaryBuildTimeout = dictionaryBuildTimeout;
+    }
+
+    /**
+     * Set the request handlers whose dictionaries (spellcheck, suggest) are built in the background after an indexation
+     * that changed the indexed content (default: none)
+     * @param dictionaryHandlers Dictionary handlers (e.g. /spell, /suggest)
+     */
+    public void setDictionaryHandlers(List<String> dictionaryHandlers) {
+        Assert.notNull(dictionaryHandlers, "dictionaryHandlers must not be null");
+        this.dictionaryHandlers = dictionaryHandlers;
+    }
+
+    /** @return Duration of the last dictionaries build (milliseconds, -1 if never built) */
+    public long getLastDictionaryBuildTime() {
+        return dictionaryBuilder == null ? -1L : dictionaryBuilder.getLastBuildTime();
+    }
+
+    /**
+     * Set the number of concurrent queries warming the caches of the new searcher after an indexation, with filters on
+     * the indexed primary types and facets or sorts on the typed dynamic fields (default: 0, no warming)
+     * @param warmingThreads Number of warming threads
+     */
+    public void setWarmingThreads(int warmingThreads) {
+        Assert.isTrue(warmingThreads >= 0, "warmingThreads must not be negative: " + warmingThreads);
+        this.warmingThreads = warmingThreads;
+    }
+
+    /**
+     * Set the time budget for warming the caches (default: 30 seconds)
+     * @param warmingTimeout Warming timeout (milliseconds)
+     */
+    public void setWarmingTimeout(int warmingTimeout) {
+        Assert.isTrue(warmingTimeout > 0, "warmingTimeout must be positive: " + warmingTimeout);
+        this.warmingTimeout = warmingTimeout;
+    }
+
+    /** @return Number of redundant live variants not indexed during the last indexation (-1 if never indexed) */
+    public long getLastCollapsedVariants() {
+        return lastCollapsedVariants;
+    }
+
+    /** @return Duration of the last caches warming (milliseconds, -1 if never warmed) */
+    public long getLastWarmingTime() {
+        return cacheWarmer == null ? -1L : cacheWarmer.getLastWarmingTime();
+    }
+
+    /**
+     * Set the number of days during which modified documents are indexed first, and committed before the others
+     * (default: 0, no prioritization). In this mode, the current index is not deleted up front: the documents are
+     * overwritten, and the documents which were not indexed again are deleted at the end.
+     * @param priorityWindowDays Priority window (days)
+     */
+    public void setPriorityWindowDays(int priorityWindowDays) {
+        Assert.isTrue(priorityWindowDays >= 0, "priorityWindowDays must not be negative: " + priorityWindowDays);
+        this.priorityWindowDays = priorityWindowDays;
+    }
+
+    /**
+     * Set if the dynamic fields are typed from the JCR property definitions of the nodes to index: dates, longs, doubles
+     * and booleans are indexed in tdate_*, tlong_*, tdouble_* and boolean_* fields (tdates_*, etc. when multiple), names
+     * in string_* fields, and only strings in dynamic_* text fields (default: false, all dynamic fields are text)
+     * @param typedFields Typed fields
+     */
+    public void setTypedFields(boolean typedFields) {
+        this.typedFields = typedFields;
+    }
+
+    /**
+     * Set the maximum number of linked documents values cached during a run (e.g. authors or categories referenced by
+     * many documents)
+     * @param linkCacheSize Link cache size
+     */
+    public void setLinkCacheSize(int linkCacheSize) {
+        Assert.isTrue(linkCacheSize > 0, "linkCacheSize must be positive: " + linkCacheSize);
+        this.linkCacheSize = linkCacheSize;
+    }
+
+    /**
+     * Set the number of runs during which the subtrees found without any document of a type to index are skipped,
+     * before a complete traversal learns them again, so that new documents in these subtrees are eventually indexed
+     * (default: 0, no learned pruning). Only the paths of the topmost barren folders are retained between runs.
+     * @param learnedPruningRuns Learned pruning runs
+     */
+    public void setLearnedPruningRuns(int learnedPruningRuns) {
+        Assert.isTrue(learnedPruningRuns >= 0, "learnedPruningRuns must not be negative: " + learnedPruningRuns);
+        this.learnedPruningRuns = learnedPruningRuns;
+    }
+
+    /**
+     * Set the directory of the spill queue, which absorbs the updates while the server is not available and replays
+     * them in order when it is back (default: none, indexation fails if the server is not available)
+     * @param spillDirectory Spill directory
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        spillQueue = new SolrSpillQueue(new File(spillDirectory));
+        try {
+            spillServer = new CommonsHttpSolrServer(serverUrl);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("serverUrl is malformed: " + serverUrl, e);
+        }
+    }
+
+    /**
+     * Set the directory of the snapshots: the documents of each successful indexation are also exported there, so that an
+     * empty index can be bootstrapped from the latest snapshot and the documents modified since, instead of a full
+     * indexation (default: none)
+     * @param snapshotDirectory Snapshot directory
+     */
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        File directory = new File(snapshotDirectory);
+        Assert.isTrue(directory.isDirectory() || directory.mkdirs(), "directory cannot be created: " + directory);
+        this.snapshotDirectory = directory;
+    }
+
+    /**
+     * Set the number of threads reading the documents subtrees concurrently (default: 1, sequential traversal)
+     * @param readerThreads Number of reader threads
+     */
+    public void setReaderThreads(int readerThreads) {
+        Assert.isTrue(readerThreads > 0, "readerThreads must be positive: " + readerThreads);
+        this.readerThreads = readerThreads;
+    }
+
+    /**
+     * Set the number of visited nodes after which a reader session is refreshed, so that its item state cache does not
+     * grow with the repository size (default: 0, never refreshed)
+     * @param sessionRefreshInterval Session refresh interval
+     */
+    public void setSessionRefreshInterval(int sessionRefreshInterval) {
+        Assert.isTrue(sessionRefreshInterval >= 0, "sessionRefreshInterval must not be negative: " +
+                sessionRefreshInterval);
+        this.sessionRefreshInterval = sessionRefreshInterval;
+    }
+
+    /** Initialize the dictionaries builder, the cache warmer, and the index if empty */
     @Override
     public void afterPropertiesSet() {
+        if (!dictionaryHandlers.isEmpty()) {
+            dictionaryBuilder = new SolrDictionaryBuilder(serverUrl, dictionaryHandlers, dictionaryBuildTimeout);
+        }
+        if (warmingThreads > 0) {
+            cacheWarmer = new SolrCacheWarmer(serverUrl, warmingThreads, warmingTimeout);
+        }
         new Thread(new Runnable() {
             /** {@inheritDoc} */
             @Override
@@ -161,7 +562,9 @@ public final class SolrIndexer implements InitializingBean {
                     try {
                         if (server.query(new SolrQuery(QUERY_ALL).setRows(1)).getResults().isEmpty()) {
                             log.info("Solr index is empty. Indexation needed...");
-                            index();
+                            if (!restoreSnapshot()) {
+                                index();
+                            }
                         }
                     } catch (SolrServerException e) {
                         log.error("Failed to check if the Solr index was empty", e);
@@ -171,25 +574,41 @@ public final class SolrIndexer implements InitializingBean {
         }).start();
     }
 
+    /** Stop background tasks */
+    @Override
+    public void destroy() {
+        if (dictionaryBuilder != null) {
+            dictionaryBuilder.shutdown();
+        }
+        if (cacheWarmer != null) {
+            cacheWarmer.shutdown();
+        }
+    }
+
     /**
      * Create server instance
      * @param serverUrl Server URL
      * @param queueSize Queue size
+     * @param threadCount Number of threads sending the documents batches to the server
      * @return Server instance
      */
-    private SolrServer createServer(String serverUrl, int queueSize) {
+    private SolrServer createServer(String serverUrl, int queueSize, int threadCount) {
         Assert.notNull(serverUrl, "serverUrl must be not null");
         Assert.isTrue(!serverUrl.isEmpty(), "serverUrl must be not empty");
         Assert.isTrue(queueSize > 0, "queueSize must be positive: " + queueSize);
+        Assert.isTrue(threadCount > 0, "threadCount must be positive: " + threadCount);
 
         StreamingUpdateSolrServer s;
         try {
-            s = new StreamingUpdateSolrServer(serverUrl, queueSize, 1) {
+            s = new StreamingUpdateSolrServer(serverUrl, queueSize, threadCount) {
                 /** {@inheritDoc} */
                 @Override
                 public void handleError(Throwable throwable) {
                     log.error("Error intercepted, check Solr logs for more details: {}", throwable.getMessage());
                     errorIntercepted.setValue(true);
+                    if (throwable instanceof IOException) {
+                        sendFailed.setValue(true);
+                    }
                 }
             };
         } catch (MalformedURLException e) {
@@ -216,52 +635,544 @@ public final class SolrIndexer implements InitializingBean {
     private void index(Collection<SolrInputDocument> documents, MutableInt totalDocuments)
             throws IOException, SolrServerException {
         if (!documents.isEmpty()) {
-            log.info("Indexing {} documents", documents.size());
-            server.add(documents);
-            totalDocuments.add(documents.size());
+            if (exportSink != null) {
+                log.info("Exporting {} documents", documents.size());
+                exportSink.write(documents);
+            }
+            if (exporting) {
+                log.debug("Export only, documents not indexed");
+            } else if (spilling) {
+                log.info("Spilling {} documents", documents.size());
+                spillQueue.append(new UpdateRequest().add(documents));
+            } else if (spillable) {
+                log.info("Indexing {} documents", documents.size());
+                send(documents);
+            } else {
+                log.info("Indexing {} documents", documents.size());
+                server.add(documents);
+            }
+            for (SolrInputDocument document : documents) {
+                contentFingerprint.addAndGet(fingerprint(document));
+                if (cacheWarmer != null) {
+                    collectWarmedFields(document);
+                }
+            }
+            UuidArray uuids = indexedUuids;
+            if (uuids != null) {
+                synchronized (uuids) {
+                    for (SolrInputDocument document : documents) {
+                        uuids.add((String) document.getFieldValue(SolrConsistencyVerifier.FIELD_UUID));
+                    }
+                }
+            }
+            synchronized (totalDocuments) {
+                totalDocuments.add(documents.size());
+            }
             documents.clear();
         }
     }
 
     /**
-     * Rollback changes when an exception occurred.
-     * @param exception Exception
+     * Send documents to the server, and check that the former batches were sent: when a batch cannot be sent (the server
+     * is not reachable, or the send backlog stays full), the whole run is spilled instead
+     * @param documents Documents
+     * @throws SendFailedException If the documents cannot be sent
      */
-    private void rollback(Throwable exception) {
-        if (exception != null) {
-            log.error("Failed to perform actions. Rolling back.", exception);
-        }
+    private void send(Collection<SolrInputDocument> documents) {
+        long startTime = System.currentTimeMillis();
         try {
-            server.rollback();
+            server.add(documents);
+        } catch (IOException e) {
+            throw new SendFailedException(e.toString());
         } catch (SolrServerException e) {
-            handleRollbackException(e);
-        } catch (SolrException e) {
-            handleRollbackException(e);
+            throw new SendFailedException(e.toString());
+        }
+        if (sendFailed.booleanValue()) {
+            throw new SendFailedException("server not reachable by the sender threads");
+        }
+        if (System.currentTimeMillis() - startTime > SPILL_BACKLOG_TIMEOUT) {
+            throw new SendFailedException("send backlog full for more than " + SPILL_BACKLOG_TIMEOUT + " ms");
+        }
+    }
+
+    /**
+     * Commit the documents sent during a run: when the run is spillable and they cannot be committed (the server is not
+     * reachable), the whole run is spilled instead
+     * @throws IOException -
+     * @throws SolrServerException -
+     * @throws SendFailedException If the documents cannot be committed
+     */
+    private void commitSent() throws IOException, SolrServerException {
+        if (!spillable) {
+            commit();
+            return;
+        }
+        try {
+            commit();
         } catch (IOException e) {
-            handleRollbackException(e);
+            throw new SendFailedException(e.toString());
+        } catch (SolrServerException e) {
+            throw new SendFailedException(e.toString());
+        }
+        if (sendFailed.booleanValue()) {
+            throw new SendFailedException("server not reachable by the sender threads");
         }
     }
 
-    /** Index all documents */
-    public void index() {
+    /**
+     * Collect the primary type and the dynamic fields of a document, to be warmed after each commit
+     * @param document Document
+     */
+    private void collectWarmedFields(SolrInputDocument document) {
+        Object primaryType = document.getFieldValue(SolrCacheWarmer.FIELD_PRIMARY_TYPE);
+        if (primaryType != null) {
+            warmedPrimaryTypes.add(primaryType.toString());
+        }
+        for (String fieldName : document.getFieldNames()) {
+            if (SolrConfiguration.FieldType.ofFieldName(fieldName) != null) {
+                warmedFieldNames.add(fieldName);
+            }
+        }
+    }
 
-        log.info("Starting Solr indexation in batches of {} documents", queueSize);
-        long startTime = System.currentTimeMillis();
-        final MutableInt totalDocuments = new MutableInt(0);
+    /** Warm the caches of the current searcher (each commit opens a new searcher, whose caches are empty) */
+    private void warm() {
+        if (cacheWarmer != null) {
+            cacheWarmer.warm(new ArrayList<String>(warmedPrimaryTypes), new ArrayList<String>(warmedFieldNames));
+        }
+    }
 
-        synchronized (server) {
+    /**
+     * Commit, then warm the caches of the new searcher (unless an error was intercepted, the changes being rolled back)
+     * @throws IOException -
+     * @throws SolrServerException -
+     */
+    private void commit() throws IOException, SolrServerException {
+        server.commit();
+        if (!errorIntercepted.booleanValue()) {
+            warm();
+        }
+    }
 
-            Session session = createSession(true);
-            if (session == null) {
-                return;
-            }
+    /**
+     * Build the dictionaries in the background, after a commit changed the indexed content
+     * @param fingerprint Fingerprint of the indexed content (null if unknown, e.g. partial change: always rebuilt)
+     */
+    private void buildDictionaries(Long fingerprint) {
+        if (dictionaryBuilder == null) {
+            return;
+        }
+        if (fingerprint == null) {
+            dictionaryBuilder.rebuild();
+        } else {
+            dictionaryBuilder.buildIfChanged(fingerprint);
+        }
+    }
 
-            try {
+    /**
+     * Create the method to run after each document creation: index documents when queue is full
+     * @param documentsQueue Documents queue
+     * @param totalDocuments Total documents (will be updated)
+     * @return Method to run after a document is created
+     */
+    private Runnable createIndexWhenQueueIsFull(final Collection<SolrInputDocument> documentsQueue,
+            final MutableInt totalDocuments) {
+        return new Runnable() {
+            /** {@inheritDoc} */
+            @Override
+            public void run() {
+                if (documentsQueue.size() >= queueSize) {
+                    try {
+                        index(documentsQueue, totalDocuments);
+                    } catch (SolrServerException e) {
+                        throw new SolrRuntimeException(e);
+                    } catch (IOException e) {
+                        throw new SolrRuntimeException(e);
+                    }
+                }
+            }
+        };
+    }
 
-                // Ping Solr server
-                SolrPingResponse ping = server.ping();
-                log.info("Server ping successful [elapsedTime = {}, QTime = {}, status = {}]",
-                        new Object[]{ping.getElapsedTime(), ping.getQTime(), ping.getStatus()});
+    /**
+     * Create the Solr OCM for a run
+     * @param configuration Configuration
+     * @return Solr OCM
+     */
+    private SolrOcm createOcm(SolrConfiguration configuration) {
+        SolrOcm ocm = new SolrOcm(configuration);
+        ocm.setSessionRefreshInterval(sessionRefreshInterval);
+        ocm.setTypedFields(typedFields);
+        if (linkCacheSize > 0) {
+            ocm.setLinkCacheSize(linkCacheSize);
+        }
+        return ocm;
+    }
+
+    /**
+     * Read the documents from the repository and index them
+     * @param ocm Solr OCM
+     * @param totalDocuments Total documents (will be updated)
+     * @throws IOException -
+     * @throws SolrServerException -
+     */
+    private void indexDocuments(SolrOcm ocm, MutableInt totalDocuments) throws IOException, SolrServerException {
+        if (readerThreads > 1) {
+            indexConcurrently(ocm, totalDocuments);
+        } else {
+            final Collection<SolrInputDocument> documentsQueue = new ArrayList<SolrInputDocument>(queueSize);
+
+            // Index documents when queue is full
+            ocm.populateDocumentsQueueThenRun(documentsQueue,
+                    createIndexWhenQueueIsFull(documentsQueue, totalDocuments));
+
+            // Index remaining documents in the queue
+            index(documentsQueue, totalDocuments);
+        }
+    }
+
+    /**
+     * Index and commit the documents modified during the priority window, which are then skipped by the traversal
+     * @param ocm Solr OCM
+     * @param totalDocuments Total documents (will be updated)
+     * @throws IOException -
+     * @throws SolrServerException -
+     */
+    private void indexRecentDocuments(SolrOcm ocm, MutableInt totalDocuments) throws IOException, SolrServerException {
+        Date since = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(priorityWindowDays));
+        Collection<SolrInputDocument> documentsQueue = new ArrayList<SolrInputDocument>(queueSize);
+        Set<String> recentUuids = ocm.populateRecentDocumentsQueueThenRun(since, documentsQueue,
+                createIndexWhenQueueIsFull(documentsQueue, totalDocuments));
+        index(documentsQueue, totalDocuments);
+        commit();
+        log.info("{} documents modified since {} indexed first", recentUuids.size(), since);
+        ocm.setSkippedUUIDs(recentUuids);
+    }
+
+    /**
+     * Delete the documents which were not indexed during the current run (prioritized indexation)
+     * @param totalDocuments Total documents indexed during the run
+     * @throws IOException -
+     * @throws SolrServerException -
+     */
+    private void deleteNotIndexedDocuments(MutableInt totalDocuments) throws IOException, SolrServerException {
+        if (indexedUuids.size() < totalDocuments.intValue()) {
+            log.warn("Only {} of the {} indexed documents have a valid {}: former documents are not deleted",
+                    new Object[]{indexedUuids.size(), totalDocuments, SolrConsistencyVerifier.FIELD_UUID});
+            return;
+        }
+        indexedUuids.sortDistinct();
+        SolrConsistencyVerifier.Drift drift =
+                new SolrConsistencyVerifier(server, VERIFY_PAGE_SIZE).verify(indexedUuids);
+        if (drift.getOrphanCount() > 0) {
+            log.info("Deleting {} documents which were not indexed again", drift.getOrphanCount());
+            deleteOrphans(drift);
+            commit();
+        }
+    }
+
+    /**
+     * Delete the orphaned documents of a drift, in batches (the UUIDs are converted to strings one batch at a time)
+     * @param drift Drift
+     * @throws IOException -
+     * @throws SolrServerException -
+     */
+    private void deleteOrphans(SolrConsistencyVerifier.Drift drift) throws IOException, SolrServerException {
+        List<String> ids = new ArrayList<String>(drift.getInvalidOrphans());
+        UuidArray orphans = drift.getOrphans();
+        for (int i = 0; i < orphans.size(); ++i) {
+            ids.add(orphans.get(i).toString());
+            if (ids.size() >= VERIFY_PAGE_SIZE) {
+                server.deleteById(ids);
+                ids = new ArrayList<String>(VERIFY_PAGE_SIZE);
+            }
+        }
+        if (!ids.isEmpty()) {
+            server.deleteById(ids);
+        }
+    }
+
+    /**
+     * Read the documents subtrees concurrently (one JCR session and one documents queue per reader) and index them
+     * @param ocm Solr OCM
+     * @param totalDocuments Total documents (will be updated)
+     */
+    private void indexConcurrently(final SolrOcm ocm, final MutableInt totalDocuments) {
+        Collection<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String path : ocm.getSubtreePaths(readerThreads * SUBTREES_PER_READER)) {
+            tasks.add(new Callable<Void>() {
+                /** {@inheritDoc} */
+                @Override
+                public Void call() throws IOException, SolrServerException, RepositoryException {
+                    Session session = createSession(true);
+                    if (session == null) {
+                        throw new RepositoryException("Cannot create a JCR session for reading " + path);
+                    }
+                    try {
+                        Collection<SolrInputDocument> documentsQueue = new ArrayList<SolrInputDocument>(queueSize);
+                        ocm.populateDocumentsQueueThenRun(session, path, documentsQueue,
+                                createIndexWhenQueueIsFull(documentsQueue, totalDocuments));
+                        index(documentsQueue, totalDocuments);
+                    } finally {
+                        JcrUtils.closeQuietly(session);
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks, readerThreads);
+    }
+
+    /**
+     * Run tasks concurrently and wait for their completion
+     * @param tasks Tasks
+     * @param threads Number of threads
+     * @throws SolrRuntimeException Wrapping the first task failure
+     */
+    private static void runAll(Collection<Callable<Void>> tasks, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Collection<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SolrRuntimeException) {
+                throw (SolrRuntimeException) e.getCause();
+            } else if (e.getCause() instanceof SendFailedException) {
+                throw (SendFailedException) e.getCause();
+            } else if (e.getCause() instanceof Exception) {
+                throw new SolrRuntimeException((Exception) e.getCause());
+            }
+            throw new SolrRuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrRuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the snapshots
+     * @return Snapshots, from the oldest to the latest
+     */
+    private File[] getSnapshots() {
+        File[] snapshots = snapshotDirectory.listFiles(new FileFilter() {
+            /** {@inheritDoc} */
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().startsWith(SNAPSHOT_PREFIX) &&
+                        !file.getName().endsWith(SNAPSHOT_TMP_SUFFIX);
+            }
+        });
+        if (snapshots == null) {
+            return new File[0];
+        }
+        Arrays.sort(snapshots);
+        return snapshots;
+    }
+
+    /**
+     * Make a snapshot written during a successful indexation the latest one, and delete the older ones
+     * @param sink Export sink of the snapshot being written
+     * @param name Snapshot name
+     */
+    private void promoteSnapshot(SolrExportSink sink, String name) {
+        File snapshot = new File(snapshotDirectory, name);
+        if (!sink.getDirectory().renameTo(snapshot)) {
+            log.error("Failed to rename snapshot {}", sink.getDirectory());
+            return;
+        }
+        exportSink = null;
+        File[] files = snapshotDirectory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory() && file.getName().startsWith(SNAPSHOT_PREFIX) && !file.equals(snapshot)) {
+                deleteDirectory(file);
+            }
+        }
+        log.info("Snapshot {} taken", snapshot);
+    }
+
+    /**
+     * Restore the latest snapshot, then index the documents modified or published since it was taken, and repair the
+     * index (documents deleted or depublished since), before building the dictionaries
+     * @return TRUE if the snapshot was restored
+     */
+    private boolean restoreSnapshot() {
+        File[] snapshots = snapshotDirectory == null ? new File[0] : getSnapshots();
+        if (snapshots.length == 0) {
+            return false;
+        }
+        File snapshot = snapshots[snapshots.length - 1];
+        log.info("Restoring snapshot {}", snapshot);
+        if (!load(snapshot)) {
+            return false;
+        }
+        Date since = new Date(Long.parseLong(snapshot.getName().substring(SNAPSHOT_PREFIX.length())));
+        // The documents deleted or depublished since the snapshot are not found by the catch-up query
+        if (!catchUp(since) || !verify(true)) {
+            buildDictionaries(null);
+        }
+        return true;
+    }
+
+    /**
+     * Index the documents modified or published since a restored snapshot was taken
+     * @param since Snapshot date
+     * @return TRUE if the documents were indexed
+     */
+    private boolean catchUp(Date since) {
+        Session session = createSession(true);
+        if (session == null) {
+            return false;
+        }
+        try {
+            SolrConfiguration configuration = new SolrConfiguration(session, solrFilterProperties);
+            if (configuration.isNotValid()) {
+                log.error("Catch-up skipped because configuration is not valid: {}", configuration);
+                return false;
+            }
+            errorIntercepted.setValue(false);
+            MutableInt totalDocuments = new MutableInt(0);
+            Collection<SolrInputDocument> documentsQueue = new ArrayList<SolrInputDocument>(queueSize);
+            createOcm(configuration).populateRecentDocumentsQueueThenRun(since, documentsQueue,
+                    createIndexWhenQueueIsFull(documentsQueue, totalDocuments));
+            index(documentsQueue, totalDocuments);
+            commit();
+            if (errorIntercepted.booleanValue()) {
+                log.error("Error intercepted while catching up the snapshot. Rolling back.");
+                rollback(null);
+                return false;
+            }
+            log.info("{} documents modified since {} indexed after restoring the snapshot", totalDocuments, since);
+            return true;
+        } catch (SolrRuntimeException e) {
+            rollback(e.getCause());
+        } catch (SolrServerException e) {
+            rollback(e);
+        } catch (SolrException e) {
+            rollback(e);
+        } catch (IOException e) {
+            rollback(e);
+        } finally {
+            JcrUtils.closeQuietly(session);
+        }
+        return false;
+    }
+
+    /**
+     * Ping the server
+     * @return Ping response (null if the server is not available and the updates can be spilled)
+     * @throws IOException -
+     * @throws SolrServerException -
+     */
+    private SolrPingResponse ping() throws IOException, SolrServerException {
+        try {
+            return server.ping();
+        } catch (IOException e) {
+            handlePingException(e);
+        } catch (SolrServerException e) {
+            handlePingException(e);
+        } catch (SolrException e) {
+            handlePingException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Handle ping exception: rethrow it, unless the updates can be spilled
+     * @param exception Exception
+     * @param <E> Exception type
+     * @throws E -
+     */
+    private <E extends Exception> void handlePingException(E exception) throws E {
+        if (spillQueue == null) {
+            throw exception;
+        }
+        log.warn("Server ping failed at {}, updates will be spilled: {}", serverUrl, exception.getMessage());
+    }
+
+    /**
+     * Send the spilled updates to the server
+     * @return TRUE if the spill queue is empty
+     */
+    private boolean drain() {
+        if (spillQueue == null || spillQueue.isEmpty()) {
+            return true;
+        }
+        try {
+            int requests = spillQueue.drain(spillServer);
+            log.info("{} spilled updates sent to {}", requests, serverUrl);
+            if (requests > 0) {
+                // The spilled updates were committed: same hooks as after an indexation (the fingerprint is unknown)
+                warm();
+                buildDictionaries(null);
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("Failed to send spilled updates to " + serverUrl, e);
+        } catch (SolrServerException e) {
+            log.warn("Failed to send spilled updates to " + serverUrl, e);
+        } catch (SolrException e) {
+            log.warn("Failed to send spilled updates to " + serverUrl, e);
+        }
+        return false;
+    }
+
+    /** Send the spilled updates to the server, if any (to be scheduled when a spill directory is set) */
+    public void drainSpillQueue() {
+        synchronized (server) {
+            drain();
+        }
+    }
+
+    /**
+     * Rollback changes when an exception occurred.
+     * @param exception Exception
+     */
+    private void rollback(Throwable exception) {
+        if (exception != null) {
+            log.error("Failed to perform actions. Rolling back.", exception);
+        }
+        try {
+            server.rollback();
+        } catch (SolrServerException e) {
+            handleRollbackException(e);
+        } catch (SolrException e) {
+            handleRollbackException(e);
+        } catch (IOException e) {
+            handleRollbackException(e);
+        }
+    }
+
+    /** Index all documents */
+    public void index() {
+
+        log.info("Starting Solr indexation in batches of {} documents ({} reader(s), {} sender(s))",
+                new Object[]{queueSize, readerThreads, threadCount});
+        SolrRunStatistics statistics = new SolrRunStatistics();
+        String snapshotName = String.format("%s%015d", SNAPSHOT_PREFIX, System.currentTimeMillis());
+        final MutableInt totalDocuments = new MutableInt(0);
+
+        synchronized (server) {
+
+            Session session = createSession(true);
+            if (session == null) {
+                return;
+            }
+
+            try {
+
+                // Ping Solr server
+                SolrPingResponse ping = ping();
+                if (ping != null) {
+                    log.info("Server ping successful [elapsedTime = {}, QTime = {}, status = {}]",
+                            new Object[]{ping.getElapsedTime(), ping.getQTime(), ping.getStatus()});
+                }
 
                 // Read Solr configuration from repository
                 SolrConfiguration configuration = new SolrConfiguration(session, solrFilterProperties);
@@ -271,60 +1182,388 @@ public final class SolrIndexer implements InitializingBean {
                 }
                 log.info("{}", configuration);
 
-                // Delete current Solr index
+                // Spill the updates if the server is not available, or if previous updates cannot be sent first
+                spilling = ping == null || !drain();
+                spillable = spillQueue != null;
+                try {
+                    if (!indexAll(configuration, totalDocuments, snapshotName)) {
+                        return;
+                    }
+                } catch (SendFailedException e) {
+                    // The batches sent so far are rolled back, and the whole run is spilled, to be replayed as a whole
+                    log.warn("Failed to send documents to {}, spilling indexation: {}", serverUrl, e.getMessage());
+                    rollback(null);
+                    discardSnapshot();
+                    totalDocuments.setValue(0);
+                    spilling = true;
+                    indexAll(configuration, totalDocuments, snapshotName);
+                    return;
+                }
+
+            } catch (SolrRuntimeException e) {
+                rollback(e.getCause());
+                return;
+            } catch (SolrServerException e) {
+                rollback(e);
+                return;
+            } catch (SolrException e) {
+                rollback(e);
+                return;
+            } catch (IOException e) {
+                rollback(e);
+                return;
+            } finally {
+                discardSnapshot();
+                if (spilling) {
+                    // Delete all and partial adds of a failed spilled indexation (no-op once queued)
+                    spillQueue.discardStaged();
+                }
+                spilling = false;
+                spillable = false;
+                indexedUuids = null;
+                JcrUtils.closeQuietly(session);
+            }
+        }
+
+        log.info("{} documents successfully indexed in {} minutes ({} with {} reader(s) and {} sender(s))",
+                new Object[]{totalDocuments, TimeUnit.MILLISECONDS.toMinutes(statistics.getElapsedTime()),
+                        statistics.summarize(totalDocuments.longValue()), readerThreads, threadCount});
+    }
+
+    /**
+     * Index all documents: sent to the server, or spilled (run of {@link #index()})
+     * @param configuration Configuration
+     * @param totalDocuments Total documents (will be updated)
+     * @param snapshotName Name of the snapshot taken (if a snapshot directory is set)
+     * @return TRUE if the documents were indexed (FALSE if they were spilled, or if an error was intercepted)
+     * @throws IOException -
+     * @throws SolrServerException -
+     * @throws SendFailedException If a batch cannot be sent while the run is spillable (the run must then be spilled)
+     */
+    private boolean indexAll(SolrConfiguration configuration, MutableInt totalDocuments, String snapshotName)
+            throws IOException, SolrServerException {
+
+        // Index recently modified documents first, and keep the current index meanwhile
+        boolean prioritized = priorityWindowDays > 0 && !spilling;
+
+        // Delete current Solr index
+        if (prioritized) {
+            log.info("Prioritized indexation: current Solr index kept until all documents are indexed");
+        } else if (spilling) {
+            log.warn("Server not available at {}. Spilling indexation.", serverUrl);
+            // Staged until the run succeeds, then superseding the former spilled updates
+            spillQueue.stage();
+            spillQueue.append(new UpdateRequest().deleteByQuery(QUERY_ALL));
+        } else {
+            log.info("Deleting current Solr index");
+            server.deleteByQuery(QUERY_ALL);
+        }
+
+        errorIntercepted.setValue(false);
+        sendFailed.setValue(false);
+        contentFingerprint.set(0L);
+        warmedPrimaryTypes.clear();
+        warmedFieldNames.clear();
+        if (snapshotDirectory != null && !spilling) {
+            exportSink = new SolrExportSink(new File(snapshotDirectory, snapshotName + SNAPSHOT_TMP_SUFFIX));
+        }
+
+        SolrOcm ocm = createOcm(configuration);
+        Set<String> barrenPaths = null;
+        if (learnedPruningRuns > 0) {
+            if (prunedPaths == null || runsSincePruningLearned >= learnedPruningRuns ||
+                    !configuration.getTraversalSignature().equals(prunedSignature)) {
+                barrenPaths = ocm.learnBarrenPaths();
+            } else {
+                log.info("Skipping {} barren subtrees learned {} run(s) ago", prunedPaths.size(),
+                        ++runsSincePruningLearned);
+                ocm.setPrunedPaths(prunedPaths);
+            }
+        }
+        indexedUuids = prioritized ? new UuidArray() : null;
+        if (prioritized) {
+            indexRecentDocuments(ocm, totalDocuments);
+        }
+        indexDocuments(ocm, totalDocuments);
+        lastCollapsedVariants = ocm.getCollapsedVariants();
+        if (lastCollapsedVariants > 0L) {
+            log.info("{} redundant live variants not indexed (one document per handle)",
+                    lastCollapsedVariants);
+        }
+        if (barrenPaths != null) {
+            log.info("{} barren subtrees learned, skipped during the next {} run(s)", barrenPaths.size(),
+                    learnedPruningRuns);
+            prunedPaths = barrenPaths;
+            prunedSignature = configuration.getTraversalSignature();
+            runsSincePruningLearned = 0;
+        }
+
+        if (spilling) {
+            spillQueue.append((UpdateRequest) new UpdateRequest().setAction(
+                    AbstractUpdateRequest.ACTION.COMMIT, true, true));
+            spillQueue.queueStaged(true);
+            log.info("{} documents spilled, to be sent when the server is available", totalDocuments);
+            return false;
+        }
+
+        commitSent();
+
+        // Errors are intercepted when committing. Not sure if the rollback is useful here.
+        if (errorIntercepted.booleanValue()) {
+            log.error("Error intercepted while indexing documents. Rolling back.");
+            rollback(null);
+            return false;
+        }
+
+        if (prioritized) {
+            deleteNotIndexedDocuments(totalDocuments);
+        }
+
+        buildDictionaries(contentFingerprint.get());
+
+        if (exportSink != null) {
+            promoteSnapshot(exportSink, snapshotName);
+        }
+        return true;
+    }
+
+    /** Delete the snapshot being written during an indexation which failed (or was spilled) */
+    private void discardSnapshot() {
+        if (exportSink != null) {
+            deleteDirectory(exportSink.getDirectory());
+            exportSink = null;
+        }
+    }
+
+    /**
+     * Export all documents to a directory (gzipped javabin chunks), without sending them to the server
+     * @param directory Export directory (must not contain an export yet)
+     */
+    public void export(String directory) {
+
+        log.info("Starting Solr export to {} in chunks of {} documents", directory, queueSize);
+        SolrRunStatistics statistics = new SolrRunStatistics();
+        MutableInt totalDocuments = new MutableInt(0);
+
+        synchronized (server) {
+
+            Session session = createSession(true);
+            if (session == null) {
+                return;
+            }
+
+            try {
+                SolrConfiguration configuration = new SolrConfiguration(session, solrFilterProperties);
+                if (configuration.isNotValid()) {
+                    log.error("Export skipped because configuration is not valid: {}", configuration);
+                    return;
+                }
+                log.info("{}", configuration);
+
+                exportSink = new SolrExportSink(new File(directory));
+                exporting = true;
+                indexDocuments(createOcm(configuration), totalDocuments);
+
+            } catch (SolrRuntimeException e) {
+                log.error("Failed to export documents to " + directory, e.getCause());
+                return;
+            } catch (SolrServerException e) {
+                log.error("Failed to export documents to " + directory, e);
+                return;
+            } catch (IOException e) {
+                log.error("Failed to export documents to " + directory, e);
+                return;
+            } finally {
+                exporting = false;
+                exportSink = null;
+                JcrUtils.closeQuietly(session);
+            }
+        }
+
+        log.info("{} documents successfully exported in {} minutes ({})", new Object[]{totalDocuments,
+                TimeUnit.MILLISECONDS.toMinutes(statistics.getElapsedTime()),
+                statistics.summarize(totalDocuments.longValue())});
+    }
+
+    /**
+     * Replace the index with the documents of an export directory, read and sent by concurrent senders
+     * @param directory Export directory
+     */
+    public void load(String directory) {
+        synchronized (server) {
+            if (load(new File(directory))) {
+                buildDictionaries(contentFingerprint.get());
+            }
+        }
+    }
+
+    /**
+     * Replace the index with the documents of an export directory, read and sent by concurrent senders (the dictionaries
+     * are not built)
+     * @param directory Export directory
+     * @return TRUE if the documents were loaded
+     */
+    private boolean load(File directory) {
+
+        File[] chunks = SolrExportSink.getChunks(directory);
+        if (chunks.length == 0) {
+            log.error("Load skipped because {} contains no export chunk", directory);
+            return false;
+        }
+        log.info("Starting Solr load of {} chunks from {}", chunks.length, directory);
+        SolrRunStatistics statistics = new SolrRunStatistics();
+        final MutableInt totalDocuments = new MutableInt(0);
+
+        synchronized (server) {
+            try {
+
+                // Ping Solr server
+                SolrPingResponse ping = server.ping();
+                log.info("Server ping successful [elapsedTime = {}, QTime = {}, status = {}]",
+                        new Object[]{ping.getElapsedTime(), ping.getQTime(), ping.getStatus()});
+
                 log.info("Deleting current Solr index");
                 server.deleteByQuery(QUERY_ALL);
 
                 errorIntercepted.setValue(false);
-                final Collection<SolrInputDocument> documentsQueue = new ArrayList<SolrInputDocument>(queueSize);
+                contentFingerprint.set(0L);
+                warmedPrimaryTypes.clear();
+                warmedFieldNames.clear();
+
+                Collection<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                for (final File chunk : chunks) {
+                    tasks.add(new Callable<Void>() {
+                        /** {@inheritDoc} */
+                        @Override
+                        public Void call() throws IOException, SolrServerException {
+                            index(SolrExportSink.readChunk(chunk), totalDocuments);
+                            return null;
+                        }
+                    });
+                }
+                runAll(tasks, threadCount);
+
+                commit();
+
+                if (errorIntercepted.booleanValue()) {
+                    log.error("Error intercepted while loading documents. Rolling back.");
+                    rollback(null);
+                    return false;
+                }
+
+            } catch (SolrRuntimeException e) {
+                rollback(e.getCause());
+                return false;
+            } catch (SolrServerException e) {
+                rollback(e);
+                return false;
+            } catch (SolrException e) {
+                rollback(e);
+                return false;
+            } catch (IOException e) {
+                rollback(e);
+                return false;
+            }
+        }
 
-                // Index documents when queue is full
-                new SolrOcm(configuration).populateDocumentsQueueThenRun(documentsQueue, new Runnable() {
-                    /** {@inheritDoc} */
-                    @Override
-                    public void run() {
+        log.info("{} documents successfully loaded in {} minutes ({})", new Object[]{totalDocuments,
+                TimeUnit.MILLISECONDS.toMinutes(statistics.getElapsedTime()),
+                statistics.summarize(totalDocuments.longValue())});
+        return true;
+    }
+
+    /** Verify that the index is consistent with the repository (missing or orphaned documents are only logged) */
+    public void verify() {
+        verify(false);
+    }
+
+    /**
+     * Verify that the index is consistent with the repository, and repair it: index the missing documents and delete
+     * the orphaned ones (the cost is proportional to the drift, not to the repository size)
+     */
+    public void verifyAndRepair() {
+        verify(true);
+    }
+
+    /**
+     * Verify that the index is consistent with the repository
+     * @param repair Repair the differences
+     * @return TRUE if the index was repaired (the dictionaries are then rebuilt)
+     */
+    private boolean verify(boolean repair) {
+
+        log.info("Starting Solr index verification");
+        long startTime = System.currentTimeMillis();
+
+        synchronized (server) {
+
+            Session session = createSession(true);
+            if (session == null) {
+                return false;
+            }
+
+            try {
+                SolrConfiguration configuration = new SolrConfiguration(session, solrFilterProperties);
+                if (configuration.isNotValid()) {
+                    log.error("Verification skipped because configuration is not valid: {}", configuration);
+                    return false;
+                }
+
+                SolrOcm ocm = createOcm(configuration);
+                UuidArray uuids = ocm.collectUUIDs();
+                uuids.sortDistinct();
+                log.info("{} indexable documents in the repository", uuids.size());
+
+                SolrConsistencyVerifier.Drift drift =
+                        new SolrConsistencyVerifier(server, VERIFY_PAGE_SIZE).verify(uuids);
+                log.info("Index verified in {} seconds: {}",
+                        TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime), drift);
+                if (!repair || drift.isEmpty()) {
+                    return false;
+                }
+
+                errorIntercepted.setValue(false);
+                MutableInt totalDocuments = new MutableInt(0);
+                Collection<SolrInputDocument> documentsQueue = new ArrayList<SolrInputDocument>(queueSize);
+                UuidArray missing = drift.getMissing();
+                for (int i = 0; i < missing.size(); ++i) {
+                    SolrInputDocument document = ocm.readDocument(missing.get(i).toString());
+                    if (document != null) {
+                        documentsQueue.add(document);
                         if (documentsQueue.size() >= queueSize) {
-                            try {
-                                index(documentsQueue, totalDocuments);
-                            } catch (SolrServerException e) {
-                                throw new SolrRuntimeException(e);
-                            } catch (IOException e) {
-                                throw new SolrRuntimeException(e);
-                            }
+                            index(documentsQueue, totalDocuments);
                         }
                     }
-                });
-
-                // Index remaining documents in the queue
+                }
                 index(documentsQueue, totalDocuments);
+                if (drift.getOrphanCount() > 0) {
+                    log.info("Deleting {} orphaned documents", drift.getOrphanCount());
+                    deleteOrphans(drift);
+                }
 
-                server.commit();
+                commit();
 
-                // Errors are intercepted when committing. Not sure if the rollback is useful here.
                 if (errorIntercepted.booleanValue()) {
-                    log.error("Error intercepted while indexing documents. Rolling back.");
+                    log.error("Error intercepted while repairing the index. Rolling back.");
                     rollback(null);
-                    return;
+                    return false;
                 }
+                log.info("Index repaired: {} documents indexed, {} documents deleted", totalDocuments,
+                        drift.getOrphanCount());
+
+                buildDictionaries(null);
+                return true;
 
-            } catch (SolrRuntimeException e) {
-                rollback(e.getCause());
-                return;
             } catch (SolrServerException e) {
                 rollback(e);
-                return;
             } catch (SolrException e) {
                 rollback(e);
-                return;
             } catch (IOException e) {
                 rollback(e);
-                return;
             } finally {
                 JcrUtils.closeQuietly(session);
             }
         }
-
-        log.info("{} documents successfully indexed in {} minutes",
-                new Object[]{totalDocuments, TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - startTime)});
+        return false;
     }
 }
\ No newline at end of file
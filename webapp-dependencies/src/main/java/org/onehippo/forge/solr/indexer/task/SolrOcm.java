@@ -15,12 +15,27 @@
  */
 package org.onehippo.forge.solr.indexer.task;
 
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
 
 import org.apache.solr.common.SolrInputDocument;
 import org.slf4j.Logger;
@@ -33,8 +48,14 @@ import org.slf4j.LoggerFactory;
  */
 public final class SolrOcm {
 
-    /** JCR path to the documents */
-    private static final String DOCUMENTS_PATH = "/content/documents";
+    /** Default maximum number of cached linked documents values */
+    private static final int DEFAULT_LINK_CACHE_SIZE = 10000;
+
+    /** JCR property containing the last modification date of a document */
+    private static final String LAST_MODIFICATION_DATE = "hippostdpubwf:lastModificationDate";
+
+    /** JCR property containing the last publication date of a document */
+    private static final String PUBLICATION_DATE = "hippostdpubwf:publicationDate";
 
     /** Logger */
     private static final Logger log = LoggerFactory.getLogger(SolrOcm.class);
@@ -42,31 +63,208 @@ public final class SolrOcm {
     /** Configuration */
     private final SolrConfiguration configuration;
 
+    /** Flag indicating if the dynamic fields are typed from the JCR property definitions (otherwise indexed as text) */
+    private boolean typedFields;
+
+    /** UUIDs of the documents skipped by the traversal (e.g. already indexed) */
+    private Set<String> skippedUUIDs = Collections.emptySet();
+
+    /** Linked documents values cache, shared by all the documents of the run */
+    private JcrUtils.LinkCache linkCache;
+
+    /** Number of visited nodes after which the session is refreshed (0 = never) */
+    private int sessionRefreshInterval;
+
+    /** Number of redundant live variants not indexed (only one variant is indexed per handle) */
+    private final AtomicLong collapsedVariants = new AtomicLong();
+
+    /** Paths of the subtrees skipped by the traversal (learned in a previous run) */
+    private Set<String> prunedPaths = Collections.emptySet();
+
+    /** Paths of the subtrees found without any document of a type to index (null if not learned) */
+    private Set<String> barrenPaths;
+
     /**
      * Constructor
      * @param configuration Configuration
      */
     public SolrOcm(SolrConfiguration configuration) {
         this.configuration = configuration;
+        linkCache = JcrUtils.createLinkCache(DEFAULT_LINK_CACHE_SIZE);
+    }
+
+    /** Visitor of the indexable documents found during the traversal */
+    private interface DocumentVisitor {
+
+        /**
+         * Visit an indexable document
+         * @param node Document node
+         */
+        void visit(Node node);
+    }
+
+    /**
+     * Learner of the topmost barren folders during a depth-first traversal: only the folders being traversed (the
+     * ancestors of the visited node) are retained, with their barren child folders, so that the state is bounded by
+     * the depth and the width of the tree, not by its number of folders
+     */
+    private static final class BarrenFoldersLearner {
+
+        /** Folder being traversed */
+        private static final class Folder {
+
+            /** Folder path */
+            private final String path;
+
+            /** Flag indicating if the folder contains documents of a type to index */
+            private boolean fruitful;
+
+            /** Barren child folders */
+            private final List<String> barrenChildren = new ArrayList<String>();
+
+            /**
+             * Constructor
+             * @param path Folder path
+             */
+            private Folder(String path) {
+                this.path = path;
+            }
+        }
+
+        /** Folders being traversed (innermost first) */
+        private final Deque<Folder> folders = new ArrayDeque<Folder>();
+
+        /** Paths of the topmost barren folders */
+        private final Set<String> barrenPaths;
+
+        /**
+         * Constructor
+         * @param barrenPaths Paths of the topmost barren folders, filled when the folders are left
+         */
+        private BarrenFoldersLearner(Set<String> barrenPaths) {
+            this.barrenPaths = barrenPaths;
+        }
+
+        /**
+         * Leave the folders which are not ancestors of the next visited path
+         * @param path Next visited path
+         */
+        private void next(String path) {
+            while (!folders.isEmpty() && !path.startsWith(folders.peek().path + "/")) {
+                leave();
+            }
+        }
+
+        /**
+         * Enter a folder, whose children are visited next
+         * @param path Folder path
+         */
+        private void enter(String path) {
+            folders.push(new Folder(path));
+        }
+
+        /** Mark the innermost folder (and thus its ancestors) as containing documents of a type to index */
+        private void markFruitful() {
+            if (!folders.isEmpty()) {
+                folders.peek().fruitful = true;
+            }
+        }
+
+        /** Leave all the folders, at the end of the traversal */
+        private void finish() {
+            while (!folders.isEmpty()) {
+                leave();
+            }
+        }
+
+        /** Leave the innermost folder: its barren child folders are topmost if it is fruitful, otherwise it is */
+        private void leave() {
+            Folder folder = folders.pop();
+            Folder parent = folders.peek();
+            if (folder.fruitful) {
+                barrenPaths.addAll(folder.barrenChildren);
+                if (parent != null) {
+                    parent.fruitful = true;
+                }
+            } else if (parent != null) {
+                parent.barrenChildren.add(folder.path);
+            } else {
+                barrenPaths.add(folder.path);
+            }
+        }
+    }
+
+    /**
+     * Set the maximum number of cached linked documents values
+     * @param linkCacheSize Link cache size
+     */
+    public void setLinkCacheSize(int linkCacheSize) {
+        linkCache = JcrUtils.createLinkCache(linkCacheSize);
+    }
+
+    /**
+     * Set if the dynamic fields are typed from the JCR property definitions (date, long, double, boolean, string for
+     * names), instead of being indexed as text
+     * @param typedFields Typed fields
+     */
+    public void setTypedFields(boolean typedFields) {
+        this.typedFields = typedFields;
+    }
+
+    /**
+     * Set the UUIDs of the documents to skip during the traversal (e.g. already indexed). Not to be modified afterwards.
+     * @param skippedUUIDs Skipped UUIDs
+     */
+    public void setSkippedUUIDs(Set<String> skippedUUIDs) {
+        this.skippedUUIDs = skippedUUIDs;
+    }
+
+    /**
+     * Set the number of visited nodes after which the session is refreshed, discarding its item state cache
+     * (0 = never)
+     * @param sessionRefreshInterval Session refresh interval
+     */
+    public void setSessionRefreshInterval(int sessionRefreshInterval) {
+        this.sessionRefreshInterval = sessionRefreshInterval;
+    }
+
+    /**
+     * Set the paths of the subtrees to skip during the traversal (see {@link #learnBarrenPaths()}). Not to be modified
+     * afterwards.
+     * @param prunedPaths Pruned paths
+     */
+    public void setPrunedPaths(Set<String> prunedPaths) {
+        this.prunedPaths = prunedPaths;
+    }
+
+    /**
+     * Learn the subtrees without any document of a type to index during the next traversals, so that they can be
+     * pruned from later runs
+     * @return Paths of the topmost barren folders, filled during the traversals
+     */
+    public Set<String> learnBarrenPaths() {
+        barrenPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        return barrenPaths;
+    }
+
+    /** @return Number of redundant live variants not indexed (only one variant is indexed per handle) */
+    public long getCollapsedVariants() {
+        return collapsedVariants.get();
     }
 
     /**
      * Traverses the JCR tree, populate the documents queue, and run a method after each document creation
+     * @param session JCR session
+     * @param rootPaths Paths to traverse
      * @param documentsQueue Documents queue
      * @param runnable Method to run after a document is created
-     * @param i Node iterator
-     */
-    private void populateDocumentsQueueThenRun(Collection<SolrInputDocument> documentsQueue, Runnable runnable,
-            NodeIterator i) {
-        while (i.hasNext()) {
-            Node node = i.nextNode();
-            if (JcrUtils.isFolder(node) || JcrUtils.isHandle(node)) {
-                try {
-                    populateDocumentsQueueThenRun(documentsQueue, runnable, node.getNodes());
-                } catch (RepositoryException e) {
-                    log.error("Failed to retrieve (child) nodes at " + JcrUtils.getPath(node), e);
-                }
-            } else if (JcrUtils.isOfType(node, configuration.getNodes()) && JcrUtils.isLive(node)) {
+     */
+    private void populateDocumentsQueueThenRun(Session session, List<String> rootPaths,
+            final Collection<SolrInputDocument> documentsQueue, final Runnable runnable) {
+        traverse(session, rootPaths, new DocumentVisitor() {
+            /** {@inheritDoc} */
+            @Override
+            public void visit(Node node) {
                 SolrInputDocument document = readProperties(node);
                 if (document != null) {
                     log.debug("Document added: {}", document);
@@ -74,9 +272,230 @@ public final class SolrOcm {
                     runnable.run();
                 }
             }
+        });
+    }
+
+    /**
+     * Traverses the JCR tree and visit the indexable documents.
+     * The traversal is iterative: only the paths still to visit are retained (no nested node iterators), so that the
+     * session can be refreshed regularly and the retained state does not grow with the repository size. It grows with
+     * the depth of the tree and the width of its folders: all the child paths of a folder are listed when the folder is
+     * entered (as the repository does when loading the folder), and kept until they are visited.
+     * Excluded and pruned subtrees are skipped without reading their children.
+     * @param session JCR session
+     * @param rootPaths Paths to traverse
+     * @param visitor Indexable documents visitor
+     */
+    private void traverse(Session session, List<String> rootPaths, DocumentVisitor visitor) {
+        Deque<String> paths = new ArrayDeque<String>();
+        for (int i = rootPaths.size() - 1; i >= 0; --i) {
+            // Only the roots may be under an excluded path, the other paths are checked before being pushed
+            if (!configuration.isInExcludedSubtree(rootPaths.get(i))) {
+                paths.push(rootPaths.get(i));
+            }
+        }
+        BarrenFoldersLearner learner = barrenPaths == null ? null : new BarrenFoldersLearner(barrenPaths);
+        long visitedNodes = 0L;
+        while (!paths.isEmpty()) {
+            String path = paths.pop();
+            if (learner != null) {
+                learner.next(path);
+            }
+            if (isExcluded(path)) {
+                log.debug("Subtree skipped: {}", path);
+                continue;
+            }
+            Node node;
+            try {
+                node = session.getNode(path);
+            } catch (RepositoryException e) {
+                log.error("Failed to retrieve node at " + path, e);
+                // Unknown content: the ancestors must not be learned as barren
+                markFruitful(learner);
+                continue;
+            }
+            if (JcrUtils.isFolder(node)) {
+                if (isExcludedFolder(node)) {
+                    log.debug("Folder skipped: {}", path);
+                    continue;
+                }
+                List<String> childPaths = getChildPaths(node);
+                if (childPaths == null) {
+                    // Unknown content: the folder and its ancestors must not be learned as barren
+                    markFruitful(learner);
+                    continue;
+                }
+                if (learner != null) {
+                    learner.enter(path);
+                }
+                pushAll(paths, childPaths);
+            } else {
+                List<Node> variants = getVariantsOfType(node);
+                if (!variants.isEmpty()) {
+                    // Ancestors are fruitful, even if the document is not live yet
+                    markFruitful(learner);
+                }
+                if (!variants.isEmpty() && !skippedUUIDs.isEmpty() &&
+                        skippedUUIDs.contains(JcrUtils.getUUID(node))) {
+                    log.debug("Document skipped: {}", path);
+                } else {
+                    Node document = selectLiveVariant(variants);
+                    if (document != null) {
+                        visitor.visit(document);
+                    }
+                }
+            }
+            if (sessionRefreshInterval > 0 && ++visitedNodes % sessionRefreshInterval == 0L) {
+                refresh(session);
+            }
+        }
+        if (learner != null) {
+            learner.finish();
         }
     }
 
+    /**
+     * Check if a subtree is skipped by the traversal: pruned, or matching an excluded path glob
+     * @param path Subtree path
+     * @return TRUE if the subtree is excluded
+     */
+    private boolean isExcluded(String path) {
+        return prunedPaths.contains(path) || configuration.isExcluded(path);
+    }
+
+    /**
+     * Check if a folder is skipped by the traversal, with its subtree, because of its type
+     * @param node Folder (or any node)
+     * @return TRUE if the node is a folder of an excluded type
+     */
+    private boolean isExcludedFolder(Node node) {
+        return JcrUtils.isFolder(node) && configuration.isExcluded(node);
+    }
+
+    /**
+     * Check if a handle (or document) found without traversing its ancestors (e.g. by a query) is excluded, as the
+     * traversal would skip it: the handle, or one of its ancestors up to its content root, is in a pruned or excluded
+     * subtree, or is a folder of an excluded type
+     * @param handle Handle (or document)
+     * @return TRUE if the handle is excluded (or if its ancestors cannot be read)
+     */
+    private boolean isExcluded(Node handle) {
+        try {
+            for (Node node = handle; node.getDepth() > 0; node = node.getParent()) {
+                String path = node.getPath();
+                if (configuration.getRoots().contains(path)) {
+                    // As for the traversal, only the excluded path globs apply to the content roots
+                    return configuration.isInExcludedSubtree(path);
+                }
+                if (isExcluded(path) || isExcludedFolder(node)) {
+                    return true;
+                }
+            }
+        } catch (RepositoryException e) {
+            log.error("Failed to retrieve the ancestors of " + JcrUtils.getPath(handle), e);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark the folder being traversed and its ancestors as containing documents of a type to index
+     * @param learner Barren folders learner (null if not learned)
+     */
+    private static void markFruitful(BarrenFoldersLearner learner) {
+        if (learner != null) {
+            learner.markFruitful();
+        }
+    }
+
+    /**
+     * Push paths on top of the paths to visit, so that they are popped in their original order
+     * @param paths Paths to visit
+     * @param pathsToPush Paths to push
+     */
+    private static void pushAll(Deque<String> paths, List<String> pathsToPush) {
+        for (int i = pathsToPush.size() - 1; i >= 0; --i) {
+            paths.push(pathsToPush.get(i));
+        }
+    }
+
+    /**
+     * Get the paths of the child nodes
+     * @param node Node
+     * @return Child paths (null if they cannot be retrieved)
+     */
+    private static List<String> getChildPaths(Node node) {
+        List<String> paths = new ArrayList<String>();
+        try {
+            NodeIterator i = node.getNodes();
+            while (i.hasNext()) {
+                paths.add(i.nextNode().getPath());
+            }
+        } catch (RepositoryException e) {
+            log.error("Failed to retrieve (child) nodes at " + JcrUtils.getPath(node), e);
+            return null;
+        }
+        return paths;
+    }
+
+    /**
+     * Refresh the session, discarding its cached item states
+     * @param session JCR session
+     */
+    private static void refresh(Session session) {
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            log.warn("Failed to refresh the JCR session", e);
+        }
+    }
+
+    /**
+     * Get the variants of a handle which are of a type to index
+     * @param node Handle (or document)
+     * @return Variants (the document itself if it is not a handle)
+     */
+    private List<Node> getVariantsOfType(Node node) {
+        if (!JcrUtils.isHandle(node)) {
+            return JcrUtils.isOfType(node, configuration.getNodes()) ?
+                    Collections.singletonList(node) : Collections.<Node>emptyList();
+        }
+        List<Node> variants = new ArrayList<Node>();
+        for (Node variant : JcrUtils.getVariants(node)) {
+            if (JcrUtils.isOfType(variant, configuration.getNodes())) {
+                variants.add(variant);
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * Select the one live variant to index, since all the variants of a handle are indexed with the handle UUID
+     * @param variants Variants of a type to index
+     * @return Variant (null if none is live)
+     */
+    private Node selectLiveVariant(List<Node> variants) {
+        List<Node> liveVariants = new ArrayList<Node>(variants.size());
+        for (Node variant : variants) {
+            if (JcrUtils.isLive(variant)) {
+                liveVariants.add(variant);
+            }
+        }
+        if (liveVariants.size() > 1) {
+            collapsedVariants.addAndGet(liveVariants.size() - 1L);
+        }
+        return JcrUtils.selectVariant(liveVariants);
+    }
+
+    /**
+     * Select the indexable document of a handle
+     * @param node Handle (or document)
+     * @return Document (null if not indexable)
+     */
+    private Node selectDocument(Node node) {
+        return selectLiveVariant(getVariantsOfType(node));
+    }
+
     /**
      * Read document from a JCR node
      * @param node JCR node
@@ -87,9 +506,9 @@ public final class SolrOcm {
         SolrInputDocument document = new SolrInputDocument();
         boolean isEmpty = true;
         for (Entry<String, String> propertyName : configuration.getProperties().entrySet()) {
-            Object value = JcrUtils.readPropertyValue(node, propertyName.getValue());
+            Object value = JcrUtils.readPropertyValue(node, propertyName.getValue(), linkCache);
             if (value != null) {
-                document.addField(propertyName.getKey(), value);
+                document.addField(configuration.getFieldName(propertyName.getKey(), typedFields), value);
                 isEmpty = false;
             }
         }
@@ -102,11 +521,175 @@ public final class SolrOcm {
      * @param runnable Method to run after a document is created
      */
     public void populateDocumentsQueueThenRun(Collection<SolrInputDocument> documentsQueue, Runnable runnable) {
+        populateDocumentsQueueThenRun(configuration.getSession(), getSubtreePaths(), documentsQueue, runnable);
+    }
+
+    /**
+     * Traverses the JCR subtree at a path with a given session (each concurrent reader owns its session, since JCR
+     * sessions are not thread-safe), populate the documents queue, and run a method after each document creation
+     * @param session JCR session
+     * @param path Subtree path (see {@link #getSubtreePaths()})
+     * @param documentsQueue Documents queue
+     * @param runnable Method to run after a document is created
+     */
+    public void populateDocumentsQueueThenRun(Session session, String path,
+            Collection<SolrInputDocument> documentsQueue, Runnable runnable) {
+        populateDocumentsQueueThenRun(session, Collections.singletonList(path), documentsQueue, runnable);
+    }
+
+    /**
+     * Get the paths of the subtrees to traverse (children of the content roots)
+     * @return Subtree paths
+     */
+    public List<String> getSubtreePaths() {
+        return getSubtreePaths(1);
+    }
+
+    /**
+     * Get the paths of the subtrees to traverse, so that they can be read concurrently: starting from the children of
+     * the content roots, the folders are split level by level until there are enough subtrees (e.g. the usual single
+     * site folder under /content/documents)
+     * @param minSubtrees Minimum number of subtrees (unless the folders cannot be split further)
+     * @return Subtree paths, in traversal order
+     */
+    public List<String> getSubtreePaths(int minSubtrees) {
+        List<String> paths = new ArrayList<String>();
+        for (String root : configuration.getRoots()) {
+            try {
+                List<String> childPaths = getChildPaths(configuration.getSession().getNode(root));
+                if (childPaths != null) {
+                    paths.addAll(childPaths);
+                }
+            } catch (RepositoryException e) {
+                log.error("Failed to retrieve node at " + root, e);
+            }
+        }
+        boolean split = true;
+        while (split && paths.size() < minSubtrees) {
+            split = false;
+            List<String> splitPaths = new ArrayList<String>();
+            for (String path : paths) {
+                List<String> childPaths = getSplittableChildPaths(path);
+                if (childPaths == null) {
+                    splitPaths.add(path);
+                } else {
+                    splitPaths.addAll(childPaths);
+                    split = true;
+                }
+            }
+            paths = splitPaths;
+        }
+        return paths;
+    }
+
+    /**
+     * Get the child paths of a folder to split into subtrees
+     * @param path Folder path
+     * @return Child paths, not excluded nor pruned (null if not a folder to traverse, or if the children cannot be
+     * retrieved)
+     */
+    private List<String> getSplittableChildPaths(String path) {
+        if (prunedPaths.contains(path) || configuration.isInExcludedSubtree(path)) {
+            return null;
+        }
         try {
-            populateDocumentsQueueThenRun(documentsQueue, runnable,
-                    configuration.getSession().getNode(DOCUMENTS_PATH).getNodes());
+            Node node = configuration.getSession().getNode(path);
+            if (!JcrUtils.isFolder(node) || isExcludedFolder(node)) {
+                return null;
+            }
+            return getChildPaths(node);
+        } catch (RepositoryException e) {
+            log.error("Failed to retrieve node at " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Collect the UUIDs of all the indexable documents (without reading their properties)
+     * @return UUIDs (unsorted)
+     */
+    public UuidArray collectUUIDs() {
+        final UuidArray uuids = new UuidArray();
+        traverse(configuration.getSession(), getSubtreePaths(), new DocumentVisitor() {
+            /** {@inheritDoc} */
+            @Override
+            public void visit(Node node) {
+                uuids.add(JcrUtils.getUUID(node));
+            }
+        });
+        return uuids;
+    }
+
+    /**
+     * Read the document of a handle (or document) UUID
+     * @param uuid UUID
+     * @return Document (null if not found or not indexable)
+     */
+    public SolrInputDocument readDocument(String uuid) {
+        try {
+            Node document = selectDocument(configuration.getSession().getNodeByIdentifier(uuid));
+            if (document != null) {
+                return readProperties(document);
+            }
         } catch (RepositoryException e) {
-            log.error("Failed to retrieve (child) nodes at " + DOCUMENTS_PATH, e);
+            log.error("Failed to read document " + uuid, e);
+        }
+        return null;
+    }
+
+    /**
+     * Query the documents modified or published since a date, populate the documents queue, and run a method after each
+     * document creation (the documents skipped by the traversal are skipped as well, see {@link #isExcluded(Node)})
+     * @param since Modification (or publication) date
+     * @param documentsQueue Documents queue
+     * @param runnable Method to run after a document is created
+     * @return UUIDs of the documents
+     */
+    public Set<String> populateRecentDocumentsQueueThenRun(Date since, Collection<SolrInputDocument> documentsQueue,
+            Runnable runnable) {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder roots = new StringBuilder();
+        for (String root : configuration.getRoots()) {
+            roots.append(roots.length() == 0 ? "(" : " OR ").append("jcr:path LIKE '").append(root).append("/%'");
+        }
+        roots.append(')');
+        Set<String> uuids = new HashSet<String>();
+        Set<String> handled = new HashSet<String>();
+        for (String type : configuration.getNodes()) {
+            String date = "TIMESTAMP '" + format.format(since) + "'";
+            String query = "SELECT * FROM " + type + " WHERE " + roots + " AND (" + LAST_MODIFICATION_DATE + " >= " +
+                    date + " OR " + PUBLICATION_DATE + " >= " + date + ")";
+            try {
+                NodeIterator i = configuration.getSession().getWorkspace().getQueryManager()
+                        .createQuery(query, Query.SQL).execute().getNodes();
+                while (i.hasNext()) {
+                    Node node = i.nextNode();
+                    String uuid = JcrUtils.getUUID(node);
+                    if (!handled.add(uuid)) {
+                        continue;
+                    }
+                    Node parent = node.getParent();
+                    Node handle = JcrUtils.isHandle(parent) ? parent : node;
+                    if (isExcluded(handle)) {
+                        log.debug("Recent document skipped: {}", JcrUtils.getPath(handle));
+                        continue;
+                    }
+                    Node variant = selectDocument(handle);
+                    if (variant != null) {
+                        uuids.add(uuid);
+                        SolrInputDocument document = readProperties(variant);
+                        if (document != null) {
+                            log.debug("Recent document added: {}", document);
+                            documentsQueue.add(document);
+                            runnable.run();
+                        }
+                    }
+                }
+            } catch (RepositoryException e) {
+                log.error("Failed to query the documents modified since " + since + ": " + query, e);
+            }
         }
+        return uuids;
     }
 }
\ No newline at end of file
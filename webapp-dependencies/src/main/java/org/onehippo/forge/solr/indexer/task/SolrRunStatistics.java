@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+/**
+ * Run statistics: duration and throughput of an indexation run (the heap and garbage collection figures are measured
+ * by the scale tests, the JVM being shared with the rest of the container)
+ */
+public final class SolrRunStatistics {
+
+    /** Start time */
+    private final long startTime = System.currentTimeMillis();
+
+    /** @return Elapsed time since the start (milliseconds) */
+    public long getElapsedTime() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Get the throughput since the start
+     * @param documents Number of documents processed
+     * @return Documents per second
+     */
+    public long getThroughput(long documents) {
+        return documents * 1000L / Math.max(getElapsedTime(), 1L);
+    }
+
+    /**
+     * Summarize the run
+     * @param documents Number of documents processed
+     * @return Summary
+     */
+    public String summarize(long documents) {
+        return getThroughput(documents) + " documents/s";
+    }
+}
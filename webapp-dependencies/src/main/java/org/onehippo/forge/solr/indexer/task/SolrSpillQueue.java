@@ -0,0 +1,287 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.StreamingUpdateSolrServer;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Durable spill queue: Solr update requests (documents, deletes, commits) that cannot be sent are appended to local
+ * segment files, in the compact javabin encoding, and replayed in order when Solr is available again.
+ * Each segment is a sequence of records (record length, then encoded request); segments are read memory-mapped and
+ * deleted once all their records have been sent and committed.
+ * The requests of a run which must be replayed as a whole (e.g. delete all, then add) are first appended to staged
+ * segments, which are only queued with their last request, and discarded if the run fails.
+ */
+public final class SolrSpillQueue {
+
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(SolrSpillQueue.class);
+
+    /** Maximum segment size (bytes), before rolling over to a new segment */
+    private static final long SEGMENT_SIZE = 64L * 1024L * 1024L;
+
+    /** Segment file name prefix */
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /** Segment file name suffix */
+    private static final String SEGMENT_SUFFIX = ".spill";
+
+    /** Staged segment file name suffix */
+    private static final String STAGED_SUFFIX = ".staged";
+
+    /** Spill directory */
+    private final File directory;
+
+    /** Segment currently appended to (null until the first append) */
+    private File currentSegment;
+
+    /** Flag indicating if the requests are appended to staged segments */
+    private boolean staging;
+
+    /**
+     * Constructor
+     * @param directory Spill directory (created if missing)
+     */
+    public SolrSpillQueue(File directory) {
+        Assert.notNull(directory, "directory must not be null");
+        Assert.isTrue(directory.isDirectory() || directory.mkdirs(), "directory cannot be created: " + directory);
+        this.directory = directory;
+    }
+
+    /**
+     * Append an update request at the end of the queue (synced to disk before returning)
+     * @param request Update request
+     * @throws IOException -
+     */
+    public synchronized void append(UpdateRequest request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new JavaBinUpdateRequestCodec().marshal(request, bytes);
+
+        if (currentSegment == null || currentSegment.length() + bytes.size() > SEGMENT_SIZE) {
+            currentSegment = newSegment(staging ? STAGED_SUFFIX : SEGMENT_SUFFIX);
+        }
+        RandomAccessFile file = new RandomAccessFile(currentSegment, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer record = ByteBuffer.allocate(4 + bytes.size());
+            record.putInt(bytes.size()).put(bytes.toByteArray()).flip();
+            channel.position(channel.size());
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Delete all the queued requests (e.g. when they are superseded by a full reindexation) */
+    public synchronized void clear() {
+        delete(getSegments(SEGMENT_SUFFIX));
+        currentSegment = null;
+    }
+
+    /** Append the next requests to staged segments, not sent until {@link #queueStaged(boolean)} */
+    public synchronized void stage() {
+        // Staged segments of a run which was interrupted (e.g. the JVM stopped)
+        delete(getSegments(STAGED_SUFFIX));
+        staging = true;
+        currentSegment = null;
+    }
+
+    /**
+     * Queue the staged requests, after the queued ones
+     * @param replace Delete the queued requests first (superseded by the staged ones)
+     * @throws IOException -
+     */
+    public synchronized void queueStaged(boolean replace) throws IOException {
+        File[] former = replace ? getSegments(SEGMENT_SUFFIX) : new File[0];
+        List<File> queued = new ArrayList<File>();
+        for (File segment : getSegments(STAGED_SUFFIX)) {
+            File q = newSegment(SEGMENT_SUFFIX);
+            if (!segment.renameTo(q)) {
+                // The staged requests are replayed as a whole, or not at all
+                delete(queued.toArray(new File[queued.size()]));
+                throw new IOException("Failed to queue staged spill segment " + segment);
+            }
+            queued.add(q);
+        }
+        delete(former);
+        staging = false;
+        currentSegment = null;
+    }
+
+    /** Discard the staged requests (e.g. when the run failed), and append the next requests to the queue again */
+    public synchronized void discardStaged() {
+        delete(getSegments(STAGED_SUFFIX));
+        staging = false;
+        currentSegment = null;
+    }
+
+    /**
+     * Send the queued requests to the server, in order, then commit them. The segments are only deleted once the server
+     * accepted all their requests and the commit; if a request fails, all the segments are kept and replayed from the
+     * start next time (replaying adds and deletes in the same order leads to the same index).
+     * @param server Server (must report errors synchronously, not a streaming server)
+     * @return Number of requests sent
+     * @throws IOException -
+     * @throws SolrServerException -
+     */
+    public synchronized int drain(SolrServer server) throws IOException, SolrServerException {
+        Assert.isTrue(!(server instanceof StreamingUpdateSolrServer), "server must report errors synchronously");
+        File[] segments = getSegments(SEGMENT_SUFFIX);
+        int requests = 0;
+        for (File segment : segments) {
+            requests += send(segment, server);
+        }
+        if (requests > 0) {
+            // Accepted updates are lost if the server stops before they are committed
+            server.commit();
+        }
+        for (File segment : segments) {
+            if (segment.equals(currentSegment)) {
+                currentSegment = null;
+            }
+            if (!segment.delete()) {
+                throw new IOException("Failed to delete drained spill segment " + segment);
+            }
+            log.info("Spill segment {} drained", segment);
+        }
+        return requests;
+    }
+
+    /** @return TRUE if no request is queued */
+    public synchronized boolean isEmpty() {
+        return getSegments(SEGMENT_SUFFIX).length == 0;
+    }
+
+    /**
+     * Get the segments
+     * @param suffix Segment file name suffix (queued or staged)
+     * @return Segments, in order
+     */
+    private File[] getSegments(final String suffix) {
+        File[] segments = directory.listFiles(new FileFilter() {
+            /** {@inheritDoc} */
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(suffix);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Delete segments
+     * @param segments Segments
+     */
+    private static void delete(File[] segments) {
+        for (File segment : segments) {
+            if (!segment.delete()) {
+                log.warn("Failed to delete spill segment {}", segment);
+            }
+        }
+    }
+
+    /**
+     * Create a new segment, after the existing ones
+     * @param suffix Segment file name suffix (queued or staged)
+     * @return New segment
+     */
+    private File newSegment(String suffix) {
+        long sequence = 0L;
+        File[] segments = getSegments(suffix);
+        if (segments.length > 0) {
+            String name = segments[segments.length - 1].getName();
+            sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - suffix.length()));
+        }
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, sequence + 1L, suffix));
+    }
+
+    /**
+     * Send the requests of a segment to the server
+     * @param segment Segment
+     * @param server Server
+     * @return Number of requests sent
+     * @throws IOException -
+     * @throws SolrServerException -
+     */
+    private static int send(File segment, SolrServer server) throws IOException, SolrServerException {
+        int requests = 0;
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    // Record not fully written (e.g. the JVM stopped while appending): it was never acknowledged
+                    log.warn("Skip truncated record at the end of spill segment {}", segment);
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                readRequest(bytes).process(server);
+                ++requests;
+            }
+        } finally {
+            file.close();
+        }
+        return requests;
+    }
+
+    /**
+     * Decode an update request
+     * @param bytes Encoded update request
+     * @return Update request
+     * @throws IOException -
+     */
+    private static UpdateRequest readRequest(byte[] bytes) throws IOException {
+        return new JavaBinUpdateRequestCodec().unmarshal(new ByteArrayInputStream(bytes),
+                new JavaBinUpdateRequestCodec.StreamingDocumentHandler() {
+                    /** {@inheritDoc} */
+                    @Override
+                    public void document(SolrInputDocument document, UpdateRequest request) {
+                        request.add(document);
+                    }
+                });
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact array of UUIDs (16 bytes each, instead of ~100 bytes for a String), which can be sorted in the same order
+ * as their canonical (lower case) string form, so that millions of them fit in a modest heap
+ */
+public final class UuidArray {
+
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(UuidArray.class);
+
+    /** Initial capacity (number of UUIDs) */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Convert a UUID half to a signed long comparable as its unsigned value
+     * @param bits UUID half
+     * @return Comparable value
+     */
+    private static long toComparable(long bits) {
+        return bits ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Compare two UUIDs in the same order as their canonical string form
+     * @param uuid1 UUID
+     * @param uuid2 UUID
+     * @return Comparison result
+     */
+    public static int compare(UUID uuid1, UUID uuid2) {
+        long msb1 = toComparable(uuid1.getMostSignificantBits());
+        long msb2 = toComparable(uuid2.getMostSignificantBits());
+        if (msb1 != msb2) {
+            return msb1 < msb2 ? -1 : 1;
+        }
+        long lsb1 = toComparable(uuid1.getLeastSignificantBits());
+        long lsb2 = toComparable(uuid2.getLeastSignificantBits());
+        return lsb1 < lsb2 ? -1 : (lsb1 == lsb2 ? 0 : 1);
+    }
+
+    /**
+     * Parse a UUID
+     * @param uuid UUID string
+     * @return UUID (null if not valid)
+     */
+    public static UUID parse(String uuid) {
+        try {
+            return uuid == null ? null : UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid UUID: {}", uuid);
+            return null;
+        }
+    }
+
+    /** UUIDs halves (most significant bits, then least significant bits) */
+    private long[] bits = new long[2 * INITIAL_CAPACITY];
+
+    /** Number of UUIDs */
+    private int size;
+
+    /**
+     * Add a UUID (invalid UUIDs are skipped)
+     * @param uuid UUID string
+     */
+    public void add(String uuid) {
+        UUID u = parse(uuid);
+        if (u != null) {
+            add(u);
+        }
+    }
+
+    /**
+     * Add a UUID
+     * @param uuid UUID
+     */
+    public void add(UUID uuid) {
+        if (2 * size == bits.length) {
+            bits = Arrays.copyOf(bits, 2 * bits.length);
+        }
+        bits[2 * size] = uuid.getMostSignificantBits();
+        bits[2 * size + 1] = uuid.getLeastSignificantBits();
+        ++size;
+    }
+
+    /**
+     * Get a UUID
+     * @param index Index
+     * @return UUID
+     */
+    public UUID get(int index) {
+        return new UUID(bits[2 * index], bits[2 * index + 1]);
+    }
+
+    /** @return Number of UUIDs */
+    public int size() {
+        return size;
+    }
+
+    /** Sort the UUIDs (in the order of their canonical string form) and remove duplicates */
+    public void sortDistinct() {
+        // Heap sort, in place
+        for (int i = size / 2 - 1; i >= 0; --i) {
+            siftDown(i, size);
+        }
+        for (int end = size - 1; end > 0; --end) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        int distinct = 0;
+        for (int i = 0; i < size; ++i) {
+            if (distinct == 0 || compare(i, distinct - 1) != 0) {
+                bits[2 * distinct] = bits[2 * i];
+                bits[2 * distinct + 1] = bits[2 * i + 1];
+                ++distinct;
+            }
+        }
+        size = distinct;
+    }
+
+    /**
+     * Compare two UUIDs of the array
+     * @param i Index
+     * @param j Index
+     * @return Comparison result
+     */
+    private int compare(int i, int j) {
+        long msbI = toComparable(bits[2 * i]);
+        long msbJ = toComparable(bits[2 * j]);
+        if (msbI != msbJ) {
+            return msbI < msbJ ? -1 : 1;
+        }
+        long lsbI = toComparable(bits[2 * i + 1]);
+        long lsbJ = toComparable(bits[2 * j + 1]);
+        return lsbI < lsbJ ? -1 : (lsbI == lsbJ ? 0 : 1);
+    }
+
+    /**
+     * Restore the heap property from an index
+     * @param index Index
+     * @param heapSize Heap size
+     */
+    private void siftDown(int index, int heapSize) {
+        int i = index;
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && compare(child + 1, child) > 0) {
+                ++child;
+            }
+            if (compare(i, child) >= 0) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    /**
+     * Swap two UUIDs of the array
+     * @param i Index
+     * @param j Index
+     */
+    private void swap(int i, int j) {
+        long msb = bits[2 * i];
+        long lsb = bits[2 * i + 1];
+        bits[2 * i] = bits[2 * j];
+        bits[2 * i + 1] = bits[2 * j + 1];
+        bits[2 * j] = msb;
+        bits[2 * j + 1] = lsb;
+    }
+}
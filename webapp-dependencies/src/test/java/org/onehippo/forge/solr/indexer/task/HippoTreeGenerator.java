@@ -0,0 +1,251 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Generator of Hippo-shaped content trees: folders containing handles, each with a live variant (and optionally preview
+ * and draft variants) of a document type with typed properties and text properties of a configurable size
+ */
+final class HippoTreeGenerator {
+
+    /** Document type of the generated variants */
+    static final String DOCUMENT_TYPE = "scale:document";
+
+    /** Typed properties of the document type */
+    private static final List<String> TYPED_PROPERTIES =
+            Arrays.asList("scale:title", "scale:date", "scale:rank", "scale:score", "scale:featured", "scale:tags");
+
+    /** Words the texts are made of */
+    private static final String[] WORDS = {"hippo", "solr", "index", "document", "folder", "handle", "variant", "live",
+            "preview", "content", "search", "query", "field", "facet", "sort", "filter", "cache", "commit", "repository",
+            "session", "node", "property", "value", "link", "root", "tree", "batch", "queue", "reader", "server"};
+
+    /** Number of nodes created between two saves */
+    private static final int SAVE_INTERVAL = 1000;
+
+    /** Maximum number of subfolders per folder */
+    private final int folderFanout;
+
+    /** Maximum number of handles per folder */
+    private final int handlesPerFolder;
+
+    /** Number of variants per handle (1 = live, 2 = live and preview, 3 = live, preview and draft) */
+    private final int variants;
+
+    /** Number of text properties per document, besides the typed ones */
+    private final int textProperties;
+
+    /** Length of each text property (characters) */
+    private final int textLength;
+
+    /** Random generator (seeded, so that the trees are reproducible) */
+    private final Random random = new Random(42L);
+
+    /** Number of nodes created since the last save */
+    private int unsavedNodes;
+
+    /**
+     * Constructor
+     * @param folderFanout Maximum number of subfolders per folder
+     * @param handlesPerFolder Maximum number of handles per folder
+     * @param variants Number of variants per handle (1 = live, 2 = live and preview, 3 = live, preview and draft)
+     * @param textProperties Number of text properties per document, besides the typed ones
+     * @param textLength Length of each text property (characters)
+     */
+    HippoTreeGenerator(int folderFanout, int handlesPerFolder, int variants, int textProperties, int textLength) {
+        if (folderFanout < 2 || handlesPerFolder < 1 || variants < 1 || variants > 3 || textProperties < 0 ||
+                textLength < 1) {
+            throw new IllegalArgumentException("Invalid tree shape");
+        }
+        this.folderFanout = folderFanout;
+        this.handlesPerFolder = handlesPerFolder;
+        this.variants = variants;
+        this.textProperties = textProperties;
+        this.textLength = textLength;
+    }
+
+    /** @return Properties of the generated documents, to be indexed */
+    List<String> getProperties() {
+        List<String> properties = new ArrayList<String>(TYPED_PROPERTIES);
+        for (int i = 0; i < textProperties; ++i) {
+            properties.add("scale:text" + i);
+        }
+        return properties;
+    }
+
+    /**
+     * Create the content root and the Solr configuration node indexing the generated documents
+     * @param session JCR session
+     * @param root Content root path (e.g. /content/documents)
+     * @throws RepositoryException -
+     */
+    void configure(Session session, String root) throws RepositoryException {
+        Node content = session.getRootNode().addNode("content", "nt:unstructured");
+        content.addNode(root.substring("/content/".length()), "hippostd:folder");
+        Node configuration = content.addNode("solr", "solr:configuration");
+        configuration.setProperty("solr:node", new String[]{DOCUMENT_TYPE});
+        configuration.setProperty("solr:property", getProperties().toArray(new String[0]));
+        configuration.setProperty("solr:root", new String[]{root});
+        session.save();
+    }
+
+    /**
+     * Generate a folder containing documents
+     * @param parent Parent folder
+     * @param name Folder name
+     * @param documents Number of documents (handles)
+     * @throws RepositoryException -
+     */
+    void generate(Node parent, String name, int documents) throws RepositoryException {
+        fill(addNode(parent, name, "hippostd:folder"), documents);
+        parent.getSession().save();
+        unsavedNodes = 0;
+    }
+
+    /**
+     * Fill a folder with handles, or with subfolders when it would contain too many handles
+     * @param folder Folder
+     * @param documents Number of documents (handles)
+     * @throws RepositoryException -
+     */
+    private void fill(Node folder, int documents) throws RepositoryException {
+        if (documents <= handlesPerFolder) {
+            for (int i = 0; i < documents; ++i) {
+                addHandle(folder, "document-" + i);
+            }
+            return;
+        }
+        int subfolders = Math.min(folderFanout, (documents + handlesPerFolder - 1) / handlesPerFolder);
+        for (int i = 0; i < subfolders; ++i) {
+            fill(addNode(folder, "folder-" + i, "hippostd:folder"),
+                    documents / subfolders + (i < documents % subfolders ? 1 : 0));
+        }
+    }
+
+    /**
+     * Add a handle and its variants
+     * @param folder Folder
+     * @param name Handle name
+     * @throws RepositoryException -
+     */
+    private void addHandle(Node folder, String name) throws RepositoryException {
+        Node handle = addNode(folder, name, "hippo:handle");
+        Node live = addVariant(handle, "published", new String[]{"live"});
+        populate(live);
+        if (variants > 1) {
+            copyProperties(live, addVariant(handle, "unpublished", new String[]{"preview"}));
+        }
+        if (variants > 2) {
+            copyProperties(live, addVariant(handle, "draft", new String[0]));
+        }
+    }
+
+    /**
+     * Add a variant
+     * @param handle Handle
+     * @param state Workflow state
+     * @param availability Availability
+     * @return Variant
+     * @throws RepositoryException -
+     */
+    private Node addVariant(Node handle, String state, String[] availability) throws RepositoryException {
+        Node variant = addNode(handle, handle.getName(), DOCUMENT_TYPE);
+        variant.setProperty("hippostd:state", state);
+        variant.setProperty("hippo:availability", availability);
+        return variant;
+    }
+
+    /**
+     * Generate the document properties of a variant
+     * @param variant Variant
+     * @throws RepositoryException -
+     */
+    private void populate(Node variant) throws RepositoryException {
+        Calendar date = Calendar.getInstance();
+        date.setTimeInMillis(1325376000000L + random.nextInt(365 * 24) * 3600000L);
+        variant.setProperty("scale:title", text(40));
+        variant.setProperty("scale:date", date);
+        variant.setProperty("scale:rank", (long) random.nextInt(1000));
+        variant.setProperty("scale:score", random.nextDouble());
+        variant.setProperty("scale:featured", random.nextInt(10) == 0);
+        variant.setProperty("scale:tags", new String[]{word(), word(), word()});
+        for (int i = 0; i < textProperties; ++i) {
+            variant.setProperty("scale:text" + i, text(textLength));
+        }
+    }
+
+    /**
+     * Copy the document properties of the live variant to another variant
+     * @param live Live variant
+     * @param variant Other variant
+     * @throws RepositoryException -
+     */
+    private void copyProperties(Node live, Node variant) throws RepositoryException {
+        for (String property : getProperties()) {
+            if (live.getProperty(property).isMultiple()) {
+                variant.setProperty(property, live.getProperty(property).getValues());
+            } else {
+                variant.setProperty(property, live.getProperty(property).getValue());
+            }
+        }
+    }
+
+    /**
+     * Add a node, saving the session regularly so that the transient space does not grow with the tree
+     * @param parent Parent node
+     * @param name Node name
+     * @param type Node type
+     * @return Node
+     * @throws RepositoryException -
+     */
+    private Node addNode(Node parent, String name, String type) throws RepositoryException {
+        Node node = parent.addNode(name, type);
+        if (++unsavedNodes >= SAVE_INTERVAL) {
+            parent.getSession().save();
+            unsavedNodes = 0;
+        }
+        return node;
+    }
+
+    /** @return Random word */
+    private String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    /**
+     * Generate a text
+     * @param length Text length (characters)
+     * @return Text
+     */
+    private String text(int length) {
+        StringBuilder text = new StringBuilder(length + 20);
+        while (text.length() < length) {
+            text.append(word()).append(' ');
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+}
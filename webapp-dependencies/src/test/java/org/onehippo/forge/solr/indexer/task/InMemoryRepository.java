@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import javax.jcr.Credentials;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+
+/**
+ * In-memory repository of the tests, with the Solr configuration node type and minimal Hippo node types (see the test
+ * resources). Only the workspaces configuration and the search index are written, in a temporary directory.
+ */
+final class InMemoryRepository {
+
+    /** Repository credentials */
+    static final Credentials CREDENTIALS = new SimpleCredentials("admin", "admin".toCharArray());
+
+    /**
+     * Create a temporary directory
+     * @param prefix Directory name prefix
+     * @return Directory
+     * @throws IOException -
+     */
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Delete a directory and its content
+     * @param file Directory (or file)
+     */
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Register node types
+     * @param session JCR session
+     * @param cnd CND resource
+     * @throws Exception -
+     */
+    private static void registerNodeTypes(Session session, String cnd) throws Exception {
+        Reader reader = new InputStreamReader(InMemoryRepository.class.getResourceAsStream(cnd), "UTF-8");
+        try {
+            CndImporter.registerNodeTypes(reader, session);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Temporary directory */
+    private final File home;
+
+    /** Repository */
+    private final RepositoryImpl repository;
+
+    /**
+     * Start the repository and register the node types
+     * @throws Exception -
+     */
+    InMemoryRepository() throws Exception {
+        home = createTempDirectory("solr-indexer-repository");
+        InputStream configuration = InMemoryRepository.class.getResourceAsStream("/repository.xml");
+        try {
+            repository = RepositoryImpl.create(RepositoryConfig.create(configuration, home.getPath()));
+        } finally {
+            configuration.close();
+        }
+        Session session = login();
+        try {
+            registerNodeTypes(session, "/solr.cnd");
+            registerNodeTypes(session, "/hippo.cnd");
+        } finally {
+            session.logout();
+        }
+    }
+
+    /** @return Repository */
+    RepositoryImpl getRepository() {
+        return repository;
+    }
+
+    /**
+     * Create a session
+     * @return JCR session
+     * @throws RepositoryException -
+     */
+    Session login() throws RepositoryException {
+        return repository.login(CREDENTIALS);
+    }
+
+    /** Stop the repository and delete its temporary directory */
+    void shutdown() {
+        repository.shutdown();
+        delete(home);
+    }
+}
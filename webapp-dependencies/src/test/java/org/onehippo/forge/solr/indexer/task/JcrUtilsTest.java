@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Tests of the JCR utilities: links resolution and link cache */
+public class JcrUtilsTest {
+
+    /** In-memory repository */
+    private static InMemoryRepository repository;
+
+    /** JCR session */
+    private static Session session;
+
+    /** Article linking two categories with same name mirrors */
+    private static Node article;
+
+    /**
+     * Add a category handle, with a live variant
+     * @param folder Folder
+     * @param name Handle name
+     * @param title Category title
+     * @return Handle
+     * @throws Exception -
+     */
+    private static Node addCategory(Node folder, String name, String title) throws Exception {
+        Node handle = folder.addNode(name, "hippo:handle");
+        Node variant = handle.addNode(name, HippoTreeGenerator.DOCUMENT_TYPE);
+        variant.setProperty("hippo:availability", new String[]{"live"});
+        variant.setProperty("hippostd:state", "published");
+        variant.setProperty("scale:title", title);
+        return handle;
+    }
+
+    /**
+     * Create the categories and the article linking them
+     * @throws Exception -
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        repository = new InMemoryRepository();
+        session = repository.login();
+        Node folder = session.getRootNode().addNode("links", "hippostd:folder");
+        Node news = addCategory(folder, "news", "News");
+        Node sports = addCategory(folder, "sports", "Sports");
+        Node handle = folder.addNode("article", "hippo:handle");
+        article = handle.addNode("article", "scale:article");
+        article.setProperty("hippo:availability", new String[]{"live"});
+        article.addNode("scale:categories", "hippo:mirror").setProperty("hippo:docbase", news.getIdentifier());
+        article.addNode("scale:categories", "hippo:mirror").setProperty("hippo:docbase", sports.getIdentifier());
+        session.save();
+    }
+
+    /** Close the session and stop the repository */
+    @AfterClass
+    public static void tearDown() {
+        if (session != null) {
+            session.logout();
+        }
+        if (repository != null) {
+            repository.shutdown();
+        }
+    }
+
+    /** All the same name mirrors of a link path are followed, not only the first one */
+    @Test
+    public void readLinkedPropertyValueOfSameNameMirrors() {
+        assertEquals(Arrays.asList("News", "Sports"),
+                JcrUtils.readPropertyValue(article, "scale:categories->scale:title"));
+        JcrUtils.LinkCache linkCache = JcrUtils.createLinkCache(100);
+        assertEquals(Arrays.asList("News", "Sports"),
+                JcrUtils.readPropertyValue(article, "scale:categories->scale:title", linkCache));
+        assertEquals(Arrays.asList("News", "Sports"),
+                JcrUtils.readPropertyValue(article, "scale:categories->scale:title", linkCache));
+    }
+
+    /** Links without the linked property have no value */
+    @Test
+    public void readLinkedPropertyValueWithoutValue() {
+        assertNull(JcrUtils.readPropertyValue(article, "scale:categories->scale:date"));
+        assertNull(JcrUtils.readPropertyValue(article, "scale:authors->scale:title"));
+    }
+
+    /** The link cache keeps at most its capacity, evicting the least recently used values */
+    @Test
+    public void linkCacheEvictsLeastRecentlyUsedValues() {
+        int capacity = 160;
+        JcrUtils.LinkCache linkCache = JcrUtils.createLinkCache(capacity);
+        linkCache.put("recent", "value");
+        for (int i = 0; i < 10 * capacity; ++i) {
+            linkCache.put("key" + i, i);
+            assertEquals("value", linkCache.get("recent"));
+        }
+        int cached = 0;
+        for (int i = 0; i < 10 * capacity; ++i) {
+            if (linkCache.get("key" + i) != null) {
+                ++cached;
+            }
+        }
+        assertTrue("Cached values: " + cached, cached > 0 && cached < capacity);
+        assertEquals(10 * capacity - 1, linkCache.get("key" + (10 * capacity - 1)));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Measurement of a scale test run: throughput, peak heap usage and garbage collection time. The test JVM is owned by
+ * the scale tests, so the heap peaks can be reset; the repository and the embedded server share the heap with the
+ * indexer, so the peak is also reported above the baseline measured when the run starts.
+ * The peak heap usage includes the garbage not collected yet, which grows with the run length: the live heap (retained
+ * objects) can also be sampled during the run, after full collections (which then count in the collection time).
+ */
+final class ScaleMeasurement {
+
+    /** Bytes per megabyte */
+    static final long MB = 1024L * 1024L;
+
+    /**
+     * Get the total garbage collection count and time
+     * @return Collection count and time (milliseconds)
+     */
+    private static long[] getGarbageCollection() {
+        long[] gc = new long[2];
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gc[0] += Math.max(bean.getCollectionCount(), 0L);
+            gc[1] += Math.max(bean.getCollectionTime(), 0L);
+        }
+        return gc;
+    }
+
+    /** @return Heap usage after a full collection (bytes) */
+    private static long getBaselineHeapUsage() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /** Heap usage when the run starts (bytes) */
+    private final long baselineHeapUsage;
+
+    /** Sampler of the live heap (null if not sampled) */
+    private final Timer sampler;
+
+    /** Peak live heap usage sampled during the run (bytes) */
+    private volatile long peakLiveHeapUsage;
+
+    /** Garbage collection count and time when the run starts */
+    private final long[] startGarbageCollection;
+
+    /** Start time */
+    private final long startTime;
+
+    /** Start a run: collects the garbage and resets the heap peaks */
+    ScaleMeasurement() {
+        this(0L);
+    }
+
+    /**
+     * Start a run: collects the garbage and resets the heap peaks
+     * @param sampleInterval Interval between two samples of the live heap (milliseconds, 0 = not sampled)
+     */
+    ScaleMeasurement(long sampleInterval) {
+        baselineHeapUsage = getBaselineHeapUsage();
+        peakLiveHeapUsage = baselineHeapUsage;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        startGarbageCollection = getGarbageCollection();
+        startTime = System.currentTimeMillis();
+        if (sampleInterval > 0L) {
+            sampler = new Timer("scale-measurement", true);
+            sampler.schedule(new TimerTask() {
+                /** {@inheritDoc} */
+                @Override
+                public void run() {
+                    peakLiveHeapUsage = Math.max(peakLiveHeapUsage, getBaselineHeapUsage());
+                }
+            }, sampleInterval, sampleInterval);
+        } else {
+            sampler = null;
+        }
+    }
+
+    /** @return Elapsed time since the start (milliseconds) */
+    long getElapsedTime() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Get the peak heap usage since the start (sum of the heap pools peaks, an upper bound)
+     * @return Peak heap usage (bytes)
+     */
+    long getPeakHeapUsage() {
+        long peak = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Get the peak live heap usage sampled during the run, above the baseline
+     * @return Peak live heap usage above the baseline (bytes, 0 if not sampled)
+     */
+    long getPeakLiveHeapUsage() {
+        return Math.max(peakLiveHeapUsage - baselineHeapUsage, 0L);
+    }
+
+    /**
+     * Summarize the run, and stop sampling the live heap
+     * @param name Run name
+     * @param documents Number of documents processed
+     * @return Summary
+     */
+    String summarize(String name, long documents) {
+        long elapsedTime = getElapsedTime();
+        if (sampler != null) {
+            sampler.cancel();
+        }
+        long[] gc = getGarbageCollection();
+        long peakHeapUsage = getPeakHeapUsage();
+        return String.format("%s: %d documents in %d ms, %d documents/s, peak heap = %d MB (%d MB above the " +
+                "baseline), peak live heap = %d MB above the baseline, GC = %d ms (%d collections)", name, documents,
+                elapsedTime, documents * 1000L / Math.max(elapsedTime, 1L), peakHeapUsage / MB,
+                Math.max(peakHeapUsage - baselineHeapUsage, 0L) / MB, getPeakLiveHeapUsage() / MB,
+                gc[1] - startGarbageCollection[1], gc[0] - startGarbageCollection[0]);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import javax.jcr.PropertyType;
+
+import org.junit.Test;
+import org.onehippo.forge.solr.indexer.task.SolrConfiguration.FieldType;
+
+/** Tests of the Solr configuration: field types of the dynamic fields, excluded path globs */
+public class SolrConfigurationTest {
+
+    /** JCR property types are mapped to the typed dynamic fields of the schema, text by default */
+    @Test
+    public void fieldTypeOfPropertyType() {
+        assertEquals(FieldType.TDATE, FieldType.of(PropertyType.DATE));
+        assertEquals(FieldType.TLONG, FieldType.of(PropertyType.LONG));
+        assertEquals(FieldType.TDOUBLE, FieldType.of(PropertyType.DOUBLE));
+        assertEquals(FieldType.TDOUBLE, FieldType.of(PropertyType.DECIMAL));
+        assertEquals(FieldType.BOOLEAN, FieldType.of(PropertyType.BOOLEAN));
+        assertEquals(FieldType.STRING, FieldType.of(PropertyType.NAME));
+        assertEquals(FieldType.TEXT, FieldType.of(PropertyType.STRING));
+        assertEquals(FieldType.TEXT, FieldType.of(PropertyType.UNDEFINED));
+    }
+
+    /** Field names get the single-valued or the multi-valued prefix of their type */
+    @Test
+    public void fieldNameOfKey() {
+        assertEquals("tdate_ns_date", FieldType.TDATE.getFieldName("dynamic_ns_date", false));
+        assertEquals("tdates_ns_date", FieldType.TDATE.getFieldName("dynamic_ns_date", true));
+        assertEquals("string_ns_code", FieldType.STRING.getFieldName("dynamic_ns_code", false));
+        assertEquals("strings_ns_code", FieldType.STRING.getFieldName("dynamic_ns_code", true));
+        assertEquals("dynamic_ns_title", FieldType.TEXT.getFieldName("dynamic_ns_title", false));
+        assertEquals("dynamic_ns_title", FieldType.TEXT.getFieldName("dynamic_ns_title", true));
+    }
+
+    /** Field types are recognized from field names, single-valued only with the singular prefix */
+    @Test
+    public void fieldTypeOfFieldName() {
+        assertEquals(FieldType.TLONG, FieldType.ofFieldName("tlong_ns_rank"));
+        assertEquals(FieldType.TLONG, FieldType.ofFieldName("tlongs_ns_rank"));
+        assertEquals(FieldType.BOOLEAN, FieldType.ofFieldName("booleans_ns_flag"));
+        assertEquals(FieldType.TEXT, FieldType.ofFieldName("dynamic_ns_title"));
+        assertNull(FieldType.ofFieldName("jcr_uuid"));
+
+        assertTrue(FieldType.isSingleValued("tdouble_ns_score"));
+        assertTrue(FieldType.isSingleValued("string_ns_code"));
+        assertFalse(FieldType.isSingleValued("tdoubles_ns_score"));
+        assertFalse(FieldType.isSingleValued("strings_ns_code"));
+        assertFalse(FieldType.isSingleValued("dynamic_ns_title"));
+        assertFalse(FieldType.isSingleValued("jcr_uuid"));
+    }
+
+    /** A single star matches within a path segment */
+    @Test
+    public void globStarWithinSegment() {
+        Pattern glob = SolrConfiguration.compileGlob("/content/documents/*/drafts");
+        assertTrue(glob.matcher("/content/documents/news/drafts").matches());
+        assertTrue(glob.matcher("/content/documents//drafts").matches());
+        assertFalse(glob.matcher("/content/documents/news/2012/drafts").matches());
+        assertFalse(glob.matcher("/content/documents/news/drafts/old").matches());
+    }
+
+    /** A double star matches across path segments */
+    @Test
+    public void globDoubleStarAcrossSegments() {
+        Pattern glob = SolrConfiguration.compileGlob("/content/**/archive");
+        assertTrue(glob.matcher("/content/documents/archive").matches());
+        assertTrue(glob.matcher("/content/documents/news/2012/archive").matches());
+        assertFalse(glob.matcher("/content/archive").matches());
+        assertFalse(glob.matcher("/content/documents/archives").matches());
+
+        Pattern prefix = SolrConfiguration.compileGlob("/content/documents/tmp-*/**");
+        assertTrue(prefix.matcher("/content/documents/tmp-1/news").matches());
+        assertFalse(prefix.matcher("/content/documents/news/tmp-1/news").matches());
+    }
+
+    /** Characters other than stars match literally */
+    @Test
+    public void globQuotesRegexCharacters() {
+        Pattern glob = SolrConfiguration.compileGlob("/content/documents/a.b(c)+[d]");
+        assertTrue(glob.matcher("/content/documents/a.b(c)+[d]").matches());
+        assertFalse(glob.matcher("/content/documents/aXb(c)+[d]").matches());
+        assertFalse(glob.matcher("/content/documents/a.bcc[d]").matches());
+    }
+}
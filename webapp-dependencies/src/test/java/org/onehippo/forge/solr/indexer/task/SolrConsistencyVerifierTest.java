@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+/** Tests of the consistency verifier: merge of the repository UUIDs with the pages of Solr UUIDs */
+public class SolrConsistencyVerifierTest {
+
+    /** UUIDs in the repository and in the index */
+    private static final String UUID_BOTH_1 = "10000000-0000-0000-0000-000000000000";
+
+    /** UUIDs in the repository and in the index */
+    private static final String UUID_BOTH_2 = "a0000000-0000-0000-0000-000000000000";
+
+    /** UUID in the repository only */
+    private static final String UUID_MISSING_1 = "00000000-0000-0000-0000-000000000001";
+
+    /** UUID in the repository only */
+    private static final String UUID_MISSING_2 = "f0000000-0000-0000-0000-000000000000";
+
+    /** UUID in the index only */
+    private static final String UUID_ORPHAN_1 = "1fffffff-0000-0000-0000-000000000000";
+
+    /** UUID in the index only */
+    private static final String UUID_ORPHAN_2 = "b0000000-0000-0000-0000-000000000000";
+
+    /** Server answering the keyset pagination queries of the verifier from a sorted set of IDs */
+    private static final class KeysetServer extends SolrServer {
+
+        /** Indexed IDs (in Solr string order) */
+        private final SortedSet<String> ids;
+
+        /** Number of queries */
+        private int queries;
+
+        /**
+         * Constructor
+         * @param ids Indexed IDs
+         */
+        private KeysetServer(String... ids) {
+            this.ids = new TreeSet<String>(Arrays.asList(ids));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public NamedList<Object> request(SolrRequest request) {
+            ++queries;
+            SolrParams params = request.getParams();
+            String q = params.get("q");
+            SortedSet<String> page = ids;
+            if (!"*:*".equals(q)) {
+                String last = q.substring(q.indexOf("{\"") + 2, q.lastIndexOf("\" TO *}"));
+                last = last.replace("\\\"", "\"").replace("\\\\", "\\");
+                page = ids.tailSet(last + '\0');
+            }
+            SolrDocumentList results = new SolrDocumentList();
+            for (String id : page) {
+                if (results.size() == params.getInt("rows", 10)) {
+                    break;
+                }
+                SolrDocument document = new SolrDocument();
+                document.setField(SolrConsistencyVerifier.FIELD_UUID, id);
+                results.add(document);
+            }
+            NamedList<Object> response = new NamedList<Object>();
+            response.add("response", results);
+            return response;
+        }
+    }
+
+    /**
+     * Create a sorted array of UUIDs
+     * @param uuids UUIDs
+     * @return Sorted array
+     */
+    private static UuidArray sorted(String... uuids) {
+        UuidArray array = new UuidArray();
+        for (String uuid : uuids) {
+            array.add(uuid);
+        }
+        array.sortDistinct();
+        return array;
+    }
+
+    /**
+     * Convert an array of UUIDs to strings
+     * @param array Array
+     * @return UUID strings
+     */
+    private static List<String> toStrings(UuidArray array) {
+        List<String> strings = new ArrayList<String>();
+        for (int i = 0; i < array.size(); ++i) {
+            strings.add(array.get(i).toString());
+        }
+        return strings;
+    }
+
+    /**
+     * Missing and orphaned documents are found across pages (one more query for the last, possibly empty, page)
+     * @throws Exception -
+     */
+    @Test
+    public void verifyAcrossPages() throws Exception {
+        KeysetServer server = new KeysetServer(UUID_BOTH_1, UUID_ORPHAN_1, UUID_BOTH_2, UUID_ORPHAN_2);
+        SolrConsistencyVerifier.Drift drift = new SolrConsistencyVerifier(server, 2)
+                .verify(sorted(UUID_MISSING_2, UUID_BOTH_2, UUID_MISSING_1, UUID_BOTH_1));
+
+        assertEquals(Arrays.asList(UUID_MISSING_1, UUID_MISSING_2), toStrings(drift.getMissing()));
+        assertEquals(Arrays.asList(UUID_ORPHAN_1, UUID_ORPHAN_2), toStrings(drift.getOrphans()));
+        assertEquals(2, drift.getOrphanCount());
+        assertEquals(3, server.queries);
+    }
+
+    /**
+     * An index consistent with the repository has no drift
+     * @throws Exception -
+     */
+    @Test
+    public void verifyConsistentIndex() throws Exception {
+        KeysetServer server = new KeysetServer(UUID_BOTH_1, UUID_BOTH_2);
+        assertTrue(new SolrConsistencyVerifier(server, 10).verify(sorted(UUID_BOTH_1, UUID_BOTH_2)).isEmpty());
+    }
+
+    /**
+     * All the repository documents are missing in an empty index
+     * @throws Exception -
+     */
+    @Test
+    public void verifyEmptyIndex() throws Exception {
+        SolrConsistencyVerifier.Drift drift =
+                new SolrConsistencyVerifier(new KeysetServer(), 10).verify(sorted(UUID_BOTH_2, UUID_BOTH_1));
+        assertEquals(Arrays.asList(UUID_BOTH_1, UUID_BOTH_2), toStrings(drift.getMissing()));
+        assertEquals(0, drift.getOrphanCount());
+    }
+
+    /**
+     * Indexed IDs which are not canonical UUIDs are reported as orphans, so that they can be deleted, without
+     * breaking the merge of the other UUIDs
+     * @throws Exception -
+     */
+    @Test
+    public void verifyInvalidIds() throws Exception {
+        String upperCase = UUID_ORPHAN_2.toUpperCase();
+        String quoted = "corrupt \"id\" \\";
+        KeysetServer server = new KeysetServer(UUID_BOTH_1, quoted, upperCase, UUID_BOTH_2);
+        SolrConsistencyVerifier.Drift drift =
+                new SolrConsistencyVerifier(server, 1).verify(sorted(UUID_BOTH_1, UUID_BOTH_2, UUID_MISSING_2));
+
+        assertEquals(Arrays.asList(UUID_MISSING_2), toStrings(drift.getMissing()));
+        assertEquals(0, drift.getOrphans().size());
+        assertEquals(new TreeSet<String>(Arrays.asList(upperCase, quoted)),
+                new TreeSet<String>(drift.getInvalidOrphans()));
+        assertEquals(2, drift.getOrphanCount());
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.jcr.Session;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.CoreContainer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scale tests: generate Hippo-shaped trees in an in-memory repository, index them end-to-end into an embedded Solr
+ * server (core of the example webapp), and log the throughput, the peak heap usage and the garbage collection time.
+ * The live heap must stay flat from the smallest tree to the largest one. The numbers of documents are set by the
+ * <i>scale.documents</i> system property (default: 10000, see the <i>scale</i> profile for 10k, 100k and 1M documents,
+ * which is the only one running these tests). The reader pools are compared on the smallest tree. Each test grows
+ * its own tree, in its own repository; the embedded server is shared, and emptied by each indexation.
+ */
+public class SolrIndexerScaleTest {
+
+    /** Logger */
+    private static final Logger log = LoggerFactory.getLogger(SolrIndexerScaleTest.class);
+
+    /** Content root */
+    private static final String ROOT = "/content/documents";
+
+    /**
+     * URL of the embedded server for the dictionaries builder, the cache warmer and the spill queue, which the tests do
+     * not enable (never requested)
+     */
+    private static final String SERVER_URL = "http://localhost:8983/solr";
+
+    /** Number of documents in each batch */
+    private static final int QUEUE_SIZE = 1000;
+
+    /** Tree generator: 10 subfolders or 50 handles per folder, live and preview variants, 4 texts of 500 characters */
+    private static final HippoTreeGenerator GENERATOR = new HippoTreeGenerator(10, 50, 2, 4, 500);
+
+    /** Interval between two samples of the live heap (milliseconds) */
+    private static final long SAMPLE_INTERVAL = 5000L;
+
+    /** Live heap growth tolerated from the smallest tree to the largest one (bytes) */
+    private static final long HEAP_TOLERANCE = 128L * 1024L * 1024L;
+
+    /** Temporary directory (Solr data) */
+    private static File home;
+
+    /** Solr cores of the embedded server */
+    private static CoreContainer coreContainer;
+
+    /** Embedded server */
+    private static SolrServer server;
+
+    /** In-memory repository of the test */
+    private InMemoryRepository repository;
+
+    /** Number of documents generated by the test */
+    private int generatedDocuments;
+
+    /**
+     * Get the numbers of documents to index
+     * @return Numbers of documents (ascending)
+     */
+    private static SortedSet<Integer> getScales() {
+        SortedSet<Integer> scales = new TreeSet<Integer>();
+        for (String scale : System.getProperty("scale.documents", "10000").split(",")) {
+            scales.add(Integer.valueOf(scale.trim()));
+        }
+        return scales;
+    }
+
+    /**
+     * Start the embedded server
+     * @throws Exception -
+     */
+    @BeforeClass
+    public static void setUpServer() throws Exception {
+        home = InMemoryRepository.createTempDirectory("solr-indexer-scale");
+
+        // Solr home of the example webapp (see the test resources), with the index in the temporary directory
+        System.setProperty("solr.solr.home",
+                new File(SolrIndexerScaleTest.class.getResource("/solr/solr.xml").toURI()).getParent());
+        System.setProperty("repo.path", home.getPath());
+        System.setProperty("solr.velocity.enabled", "false");
+        coreContainer = new CoreContainer.Initializer().initialize();
+        server = new EmbeddedSolrServer(coreContainer, "collection1");
+    }
+
+    /** Stop the embedded server */
+    @AfterClass
+    public static void tearDownServer() {
+        if (coreContainer != null) {
+            coreContainer.shutdown();
+        }
+        if (home != null) {
+            InMemoryRepository.delete(home);
+        }
+    }
+
+    /**
+     * Start the in-memory repository of the test, with an empty tree
+     * @throws Exception -
+     */
+    @Before
+    public void setUp() throws Exception {
+        repository = new InMemoryRepository();
+        Session session = repository.login();
+        try {
+            GENERATOR.configure(session, ROOT);
+        } finally {
+            session.logout();
+        }
+    }
+
+    /** Stop the in-memory repository of the test */
+    @After
+    public void tearDown() {
+        if (repository != null) {
+            repository.shutdown();
+        }
+    }
+
+    /**
+     * Grow the generated tree
+     * @param documents Number of documents the tree must contain
+     * @throws Exception -
+     */
+    private void grow(int documents) throws Exception {
+        if (documents <= generatedDocuments) {
+            return;
+        }
+        Session session = repository.login();
+        try {
+            ScaleMeasurement measurement = new ScaleMeasurement();
+            GENERATOR.generate(session.getNode(ROOT), "scale-" + documents, documents - generatedDocuments);
+            log.info(measurement.summarize("Generated tree", documents - generatedDocuments));
+            generatedDocuments = documents;
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * Create an indexer on the embedded server and the in-memory repository
+     * @param readerThreads Number of threads reading the documents subtrees concurrently
+     * @return Indexer
+     */
+    private SolrIndexer createIndexer(int readerThreads) {
+        Map<String, String> solrFilterProperties = new HashMap<String, String>();
+        solrFilterProperties.put("jcr_uuid", "jcr:uuid");
+        solrFilterProperties.put("jcr_primaryType", "jcr:primaryType");
+        SolrIndexer indexer = new SolrIndexer(server, SERVER_URL, QUEUE_SIZE, 1, solrFilterProperties);
+        indexer.setRepository(repository.getRepository(), InMemoryRepository.CREDENTIALS);
+        indexer.setReaderThreads(readerThreads);
+        indexer.setSessionRefreshInterval(1000);
+        indexer.setTypedFields(true);
+        return indexer;
+    }
+
+    /**
+     * Count the indexed documents
+     * @return Number of documents in the index
+     * @throws SolrServerException -
+     */
+    private static long countIndexedDocuments() throws SolrServerException {
+        return server.query(new SolrQuery("*:*").setRows(0)).getResults().getNumFound();
+    }
+
+    /**
+     * Index the whole tree at each scale (one live variant indexed per handle), with a live heap as flat at the largest
+     * scale as at the smallest one
+     * @throws Exception -
+     */
+    @Test
+    public void indexAtScale() throws Exception {
+        SortedSet<Integer> scales = getScales();
+        long smallestLiveHeapUsage = 0L;
+        for (int documents : scales) {
+            grow(documents);
+            SolrIndexer indexer = createIndexer(1);
+            ScaleMeasurement measurement = new ScaleMeasurement(SAMPLE_INTERVAL);
+            indexer.index();
+            log.info(measurement.summarize("index()", documents));
+            assertEquals(documents, countIndexedDocuments());
+            assertEquals(0L, indexer.getLastCollapsedVariants());
+            if (documents == scales.first()) {
+                smallestLiveHeapUsage = measurement.getPeakLiveHeapUsage();
+            } else if (documents == scales.last()) {
+                long liveHeapUsage = measurement.getPeakLiveHeapUsage();
+                assertTrue(String.format("Live heap grew from %d MB (%d documents) to %d MB (%d documents)",
+                        smallestLiveHeapUsage / ScaleMeasurement.MB, scales.first(),
+                        liveHeapUsage / ScaleMeasurement.MB, documents),
+                        liveHeapUsage <= smallestLiveHeapUsage + HEAP_TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * Compare the reader pools: index the same tree with 1 reader, then with more readers (up to the number of
+     * processors), after an indexation warming up the repository caches
+     * @throws Exception -
+     */
+    @Test
+    public void compareReaderPools() throws Exception {
+        grow(getScales().first());
+        createIndexer(1).index();
+        SortedSet<Integer> pools =
+                new TreeSet<Integer>(Arrays.asList(1, 2, Runtime.getRuntime().availableProcessors()));
+        for (int readerThreads : pools) {
+            SolrIndexer indexer = createIndexer(readerThreads);
+            ScaleMeasurement measurement = new ScaleMeasurement();
+            indexer.index();
+            log.info(measurement.summarize("index() with " + readerThreads + " reader(s)",
+                    generatedDocuments));
+            assertEquals(generatedDocuments, countIndexedDocuments());
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests of the Solr OCM: the recent documents query finds the documents modified or published recently, and skips the
+ * same documents as the traversal, which learns the barren folders
+ */
+public class SolrOcmTest {
+
+    /** Content root */
+    private static final String ROOT = "/content/documents";
+
+    /** Pruned subtree */
+    private static final String PRUNED_PATH = ROOT + "/pruned";
+
+    /** In-memory repository */
+    private static InMemoryRepository repository;
+
+    /** JCR session */
+    private static Session session;
+
+    /** UUID of the document which is not excluded */
+    private static String keptUuid;
+
+    /** UUID of the document in the pruned subtree */
+    private static String prunedUuid;
+
+    /** UUID of the document published recently, but modified long ago */
+    private static String publishedUuid;
+
+    /**
+     * Add a handle, with a live variant modified now
+     * @param folder Folder
+     * @param name Handle name
+     * @return Handle UUID
+     * @throws Exception -
+     */
+    private static String addDocument(Node folder, String name) throws Exception {
+        Node handle = folder.addNode(name, "hippo:handle");
+        Node variant = handle.addNode(name, HippoTreeGenerator.DOCUMENT_TYPE);
+        variant.setProperty("hippo:availability", new String[]{"live"});
+        variant.setProperty("hippostd:state", "published");
+        variant.setProperty("hippostdpubwf:lastModificationDate", Calendar.getInstance());
+        variant.setProperty("scale:title", name);
+        return handle.getIdentifier();
+    }
+
+    /**
+     * Create the configuration and the documents: one kept, one published recently, one under an excluded path, one in
+     * a folder of an excluded type, one in a pruned subtree; and folders without any document
+     * @throws Exception -
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        repository = new InMemoryRepository();
+        session = repository.login();
+        Node content = session.getRootNode().addNode("content", "nt:unstructured");
+        Node documents = content.addNode("documents", "hippostd:folder");
+        Node configuration = content.addNode("solr", "solr:configuration");
+        configuration.setProperty("solr:node", new String[]{HippoTreeGenerator.DOCUMENT_TYPE});
+        configuration.setProperty("solr:property", new String[]{"scale:title"});
+        configuration.setProperty("solr:root", new String[]{ROOT});
+        configuration.setProperty("solr:exclude", new String[]{ROOT + "/*/drafts"});
+        configuration.setProperty("solr:excludetype", new String[]{"scale:archive"});
+
+        Node news = documents.addNode("news", "hippostd:folder");
+        keptUuid = addDocument(news, "kept");
+        publishedUuid = addDocument(news, "published");
+        Calendar modified = Calendar.getInstance();
+        modified.add(Calendar.YEAR, -1);
+        Node published = news.getNode("published/published");
+        published.setProperty("hippostdpubwf:lastModificationDate", modified);
+        published.setProperty("hippostdpubwf:publicationDate", Calendar.getInstance());
+        addDocument(news.addNode("drafts", "hippostd:folder"), "draft");
+        addDocument(documents.addNode("archive", "scale:archive").addNode("2011", "hippostd:folder"), "archived");
+        prunedUuid = addDocument(documents.addNode("pruned", "hippostd:folder"), "pruned");
+        news.addNode("empty", "hippostd:folder");
+        documents.addNode("empty", "hippostd:folder").addNode("2011", "hippostd:folder");
+        session.save();
+    }
+
+    /** Close the session and stop the repository */
+    @AfterClass
+    public static void tearDown() {
+        if (session != null) {
+            session.logout();
+        }
+        if (repository != null) {
+            repository.shutdown();
+        }
+    }
+
+    /**
+     * Create the Solr OCM
+     * @param prunedPaths Pruned paths
+     * @return Solr OCM
+     */
+    private static SolrOcm createOcm(Set<String> prunedPaths) {
+        SolrOcm ocm = new SolrOcm(new SolrConfiguration(session, Collections.<String, String>emptyMap()));
+        ocm.setPrunedPaths(prunedPaths);
+        return ocm;
+    }
+
+    /**
+     * Collect the UUIDs of the documents found by the traversal
+     * @param ocm Solr OCM
+     * @return UUIDs
+     */
+    private static Set<String> traverse(SolrOcm ocm) {
+        UuidArray uuids = ocm.collectUUIDs();
+        Set<String> strings = new HashSet<String>();
+        for (int i = 0; i < uuids.size(); ++i) {
+            strings.add(uuids.get(i).toString());
+        }
+        return strings;
+    }
+
+    /**
+     * Query the UUIDs of the documents modified or published during the last day
+     * @param ocm Solr OCM
+     * @return UUIDs
+     */
+    private static Set<String> queryRecent(SolrOcm ocm) {
+        List<SolrInputDocument> documents = new ArrayList<SolrInputDocument>();
+        Set<String> uuids = ocm.populateRecentDocumentsQueueThenRun(
+                new Date(System.currentTimeMillis() - 24L * 3600L * 1000L), documents, new Runnable() {
+                    /** {@inheritDoc} */
+                    @Override
+                    public void run() {
+                        // Documents kept in the queue
+                    }
+                });
+        assertEquals(uuids.size(), documents.size());
+        return uuids;
+    }
+
+    /** Documents under an excluded path or in a folder of an excluded type are neither traversed nor queried */
+    @Test
+    public void excludedDocuments() {
+        Set<String> expected = new HashSet<String>();
+        expected.add(keptUuid);
+        expected.add(publishedUuid);
+        expected.add(prunedUuid);
+        SolrOcm ocm = createOcm(Collections.<String>emptySet());
+        assertEquals(expected, traverse(ocm));
+        assertEquals(expected, queryRecent(ocm));
+    }
+
+    /** Documents in a pruned subtree are neither traversed nor queried */
+    @Test
+    public void prunedDocuments() {
+        Set<String> expected = new HashSet<String>();
+        expected.add(keptUuid);
+        expected.add(publishedUuid);
+        SolrOcm ocm = createOcm(Collections.singleton(PRUNED_PATH));
+        assertEquals(expected, traverse(ocm));
+        assertEquals(expected, queryRecent(ocm));
+    }
+
+    /** Only the topmost folders without any document of a type to index are learned as barren */
+    @Test
+    public void learnBarrenPaths() {
+        SolrOcm ocm = createOcm(Collections.<String>emptySet());
+        Set<String> barrenPaths = ocm.learnBarrenPaths();
+        traverse(ocm);
+        assertEquals(new HashSet<String>(Arrays.asList(ROOT + "/empty", ROOT + "/news/empty")), barrenPaths);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests of the spill queue: order of the queued and staged requests, and their replay */
+public class SolrSpillQueueTest {
+
+    /** Recorded commit request */
+    private static final String COMMIT = "commit";
+
+    /** Server recording the IDs deleted by each request, or the commits */
+    private static final class RecordingServer extends SolrServer {
+
+        /** Recorded requests */
+        private final List<String> requests = new ArrayList<String>();
+
+        /** Number of requests accepted before failing (-1 = never fails) */
+        private int failAfter = -1;
+
+        /** {@inheritDoc} */
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws IOException {
+            if (failAfter == 0) {
+                throw new IOException("Server not available");
+            }
+            --failAfter;
+            List<String> ids = ((UpdateRequest) request).getDeleteById();
+            if (ids == null) {
+                requests.add(COMMIT);
+            } else {
+                requests.addAll(ids);
+            }
+            return new NamedList<Object>();
+        }
+    }
+
+    /** Spill directory */
+    private File directory;
+
+    /** Spill queue */
+    private SolrSpillQueue queue;
+
+    /**
+     * Create the spill queue
+     * @throws IOException -
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = InMemoryRepository.createTempDirectory("solr-indexer-spill");
+        queue = new SolrSpillQueue(directory);
+    }
+
+    /** Delete the spill directory */
+    @After
+    public void tearDown() {
+        InMemoryRepository.delete(directory);
+    }
+
+    /**
+     * Create a delete request, identified by the deleted ID
+     * @param id Deleted ID
+     * @return Request
+     */
+    private static UpdateRequest request(String id) {
+        return new UpdateRequest().deleteById(id);
+    }
+
+    /**
+     * Queued requests are sent in order, then committed, and deleted once sent
+     * @throws Exception -
+     */
+    @Test
+    public void drainInOrder() throws Exception {
+        queue.append(request("a"));
+        queue.append(request("b"));
+        assertFalse(queue.isEmpty());
+
+        RecordingServer server = new RecordingServer();
+        assertEquals(2, queue.drain(server));
+        assertEquals(Arrays.asList("a", "b", COMMIT), server.requests);
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Staged requests are not sent until they are queued, after the former queued requests
+     * @throws Exception -
+     */
+    @Test
+    public void queueStagedAfterQueued() throws Exception {
+        queue.append(request("a"));
+        queue.stage();
+        queue.append(request("b"));
+        queue.append(request("c"));
+
+        RecordingServer server = new RecordingServer();
+        assertEquals(1, queue.drain(server));
+        assertEquals(Arrays.asList("a", COMMIT), server.requests);
+
+        queue.queueStaged(false);
+        queue.append(request("d"));
+        server.requests.clear();
+        assertEquals(3, queue.drain(server));
+        assertEquals(Arrays.asList("b", "c", "d", COMMIT), server.requests);
+    }
+
+    /**
+     * Staged requests supersede the former queued requests when they replace them
+     * @throws Exception -
+     */
+    @Test
+    public void queueStagedReplacingQueued() throws Exception {
+        queue.append(request("a"));
+        queue.stage();
+        queue.append(request("b"));
+        queue.queueStaged(true);
+
+        RecordingServer server = new RecordingServer();
+        assertEquals(1, queue.drain(server));
+        assertEquals(Arrays.asList("b", COMMIT), server.requests);
+    }
+
+    /**
+     * Discarded staged requests are never sent, and the next requests are queued again
+     * @throws Exception -
+     */
+    @Test
+    public void discardStaged() throws Exception {
+        queue.stage();
+        queue.append(request("a"));
+        queue.discardStaged();
+        assertTrue(queue.isEmpty());
+
+        queue.append(request("b"));
+        RecordingServer server = new RecordingServer();
+        assertEquals(1, queue.drain(server));
+        assertEquals(Arrays.asList("b", COMMIT), server.requests);
+    }
+
+    /**
+     * The segments are kept when the server fails before the commit, and replayed from the start
+     * @throws Exception -
+     */
+    @Test
+    public void replayAfterFailure() throws Exception {
+        queue.append(request("a"));
+        queue.append(request("b"));
+
+        RecordingServer server = new RecordingServer();
+        server.failAfter = 2;
+        try {
+            queue.drain(server);
+            fail("The commit should fail");
+        } catch (IOException e) {
+            // Expected: the commit failed
+        }
+        assertFalse(queue.isEmpty());
+
+        server = new RecordingServer();
+        assertEquals(2, queue.drain(server));
+        assertEquals(Arrays.asList("a", "b", COMMIT), server.requests);
+        assertEquals(Collections.<String>emptyList(), Arrays.asList(directory.list()));
+    }
+}
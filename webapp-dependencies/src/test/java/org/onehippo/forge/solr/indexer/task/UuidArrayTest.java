@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2012 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.solr.indexer.task;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/** Tests of the compact array of UUIDs */
+public class UuidArrayTest {
+
+    /**
+     * Generate random UUIDs, including UUIDs whose halves are negative as signed longs
+     * @param count Number of UUIDs
+     * @return UUIDs
+     */
+    private static List<UUID> randomUuids(int count) {
+        Random random = new Random(42L);
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (int i = 0; i < count; ++i) {
+            uuids.add(new UUID(random.nextLong(), random.nextLong()));
+        }
+        uuids.add(new UUID(Long.MIN_VALUE, Long.MAX_VALUE));
+        uuids.add(new UUID(Long.MAX_VALUE, Long.MIN_VALUE));
+        uuids.add(new UUID(-1L, 0L));
+        uuids.add(new UUID(0L, -1L));
+        return uuids;
+    }
+
+    /** UUIDs are sorted in the order of their canonical string form, which is the order of the Solr index */
+    @Test
+    public void sortInStringOrder() {
+        List<UUID> uuids = randomUuids(1000);
+        UuidArray array = new UuidArray();
+        List<String> expected = new ArrayList<String>();
+        for (UUID uuid : uuids) {
+            array.add(uuid.toString());
+            expected.add(uuid.toString());
+        }
+        array.sortDistinct();
+        Collections.sort(expected);
+
+        assertEquals(expected.size(), array.size());
+        for (int i = 0; i < array.size(); ++i) {
+            assertEquals(expected.get(i), array.get(i).toString());
+        }
+    }
+
+    /** Comparing UUIDs is consistent with comparing their canonical string form */
+    @Test
+    public void compareInStringOrder() {
+        List<UUID> uuids = randomUuids(100);
+        for (UUID uuid1 : uuids) {
+            for (UUID uuid2 : uuids) {
+                assertEquals(Integer.signum(uuid1.toString().compareTo(uuid2.toString())),
+                        UuidArray.compare(uuid1, uuid2));
+            }
+        }
+    }
+
+    /** Duplicates are removed when sorting, invalid UUIDs are skipped when adding */
+    @Test
+    public void sortDistinctAndSkipInvalid() {
+        List<UUID> uuids = randomUuids(100);
+        UuidArray array = new UuidArray();
+        for (int copy = 0; copy < 3; ++copy) {
+            for (UUID uuid : uuids) {
+                array.add(uuid);
+            }
+        }
+        array.add("not a UUID");
+        array.add((String) null);
+        assertEquals(3 * uuids.size(), array.size());
+
+        array.sortDistinct();
+        TreeSet<String> expected = new TreeSet<String>();
+        for (UUID uuid : uuids) {
+            expected.add(uuid.toString());
+        }
+        assertEquals(expected.size(), array.size());
+        int i = 0;
+        for (String uuid : expected) {
+            assertEquals(uuid, array.get(i++).toString());
+        }
+    }
+
+    /** The array grows beyond its initial capacity */
+    @Test
+    public void grow() {
+        UuidArray array = new UuidArray();
+        for (int i = 0; i < 5000; ++i) {
+            array.add(new UUID(0L, i));
+        }
+        assertEquals(5000, array.size());
+        assertEquals(new UUID(0L, 4999L), array.get(4999));
+    }
+}